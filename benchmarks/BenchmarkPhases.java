@@ -0,0 +1,53 @@
+import bench.CompilerPhases;
+import org.antlr.v4.runtime.*;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/* exposes each phase of Main.compile on its own to the benchmarks (see bench.CompilerPhases), through the same
+   Main.parse / collect / generator / optimize the compiler runs, with the default options */
+public class BenchmarkPhases implements CompilerPhases {
+    private final JavaLexer lexer = new JavaLexer(null);
+    private final JavaParser parser = new JavaParser(null);
+    private final Options options = new Options();
+
+    @Override
+    public Object lex(String source) {
+        this.lexer.setInputStream(CharStreams.fromString(source));
+        CommonTokenStream tokens = new CommonTokenStream(this.lexer);
+        tokens.fill();
+        return tokens;
+    }
+
+    @Override
+    public Object parse(Object tokens) {
+        return Main.parse(this.parser, (CommonTokenStream) tokens);
+    }
+
+    @Override
+    public Object collect(Object tree) {
+        return Main.collect((JavaParser.GoalContext) tree, this.options);
+    }
+
+    @Override
+    public Object generate(Object tree, Object classData) {
+        LLVMGenerator v1 = Main.generator((FirstVisitor) classData, this.options);
+        v1.visit((JavaParser.GoalContext) tree);
+        return v1.module;
+    }
+
+    @Override
+    public Object copy(Object module) {
+        return ((LLVMModule) module).copy();
+    }
+
+    @Override
+    public void optimize(Object module, Object classData) throws IOException {
+        Main.optimize((LLVMModule) module, ((FirstVisitor) classData).classes, this.options, null);
+    }
+
+    @Override
+    public void write(Object module, Writer out) throws IOException {
+        ((LLVMModule) module).print(out);
+    }
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/* throughput of each compiler phase on its own, over generated programs of growing size; run with -prof gc to get
+   allocation rates, the @Param grid gives the scaling curves (see ez.bat bench) */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompilerBenchmark {
+    @Param({"10", "100", "1000"})
+    int classes;
+
+    @Param({"1", "8"})
+    int depth;
+
+    @Param({"12", "120"})
+    int statements;
+
+    @Param({"2", "16"})
+    int nesting;
+
+    CompilerPhases phases;
+    String source;
+    Object tokens, tree, classData, module;
+
+    /* discards everything, so writing measures producing the text and nothing else */
+    private static final Writer SINK = new Writer() {
+        @Override
+        public void write(char[] buf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str) {
+        }
+
+        @Override
+        public void write(int c) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    static CompilerPhases loadPhases() throws ReflectiveOperationException {
+        return (CompilerPhases) Class.forName("BenchmarkPhases").getDeclaredConstructor().newInstance();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        this.phases = loadPhases();
+        this.source = ProgramGenerator.generate(this.classes, this.depth, this.statements, this.nesting);
+        this.tokens = this.phases.lex(this.source);
+        this.tree = this.phases.parse(this.tokens);
+        this.classData = this.phases.collect(this.tree);
+        this.module = this.phases.generate(this.tree, this.classData);
+    }
+
+    @Benchmark
+    public Object lex() {
+        return this.phases.lex(this.source);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return this.phases.parse(this.tokens);
+    }
+
+    @Benchmark
+    public Object firstVisitor() {
+        return this.phases.collect(this.tree);
+    }
+
+    @Benchmark
+    public Object llvmGenerator() {
+        return this.phases.generate(this.tree, this.classData);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        this.phases.write(this.module, SINK);
+    }
+
+    /* passes rewrite the module in place, so each invocation optimizes a copy of the module generated for the
+       trial; per invocation setup would distort a benchmark this short, copyModule measures the copy alone */
+    @Benchmark
+    public Object copyModule() {
+        return this.phases.copy(this.module);
+    }
+
+    @Benchmark
+    public Object optimize() throws IOException {
+        Object copy = this.phases.copy(this.module);
+        this.phases.optimize(copy, this.classData);
+        return copy;
+    }
+}
@@ -0,0 +1,30 @@
+package bench;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/* the compiler lives in the default package, which classes in named packages (and so JMH benchmarks) cannot refer to;
+   BenchmarkPhases implements this interface on top of it and benchmarks only ever see these opaque handles */
+public interface CompilerPhases {
+
+    /** Lex the whole source, return the filled token stream. */
+    Object lex(String source);
+
+    /** Parse a token stream returned by lex, return the parse tree. */
+    Object parse(Object tokens);
+
+    /** Run FirstVisitor over a parse tree, return the visitor holding the class data. */
+    Object collect(Object tree);
+
+    /** Run LLVMGenerator over a parse tree, given the result of collect, return the generated module. */
+    Object generate(Object tree, Object classData);
+
+    /** Copy a module returned by generate, so it can be optimized while the original stays as generated. */
+    Object copy(Object module);
+
+    /** Run the optimization passes over a generated module, in place, given the result of collect. */
+    void optimize(Object module, Object classData) throws IOException;
+
+    /** Print a module as textual IR. */
+    void write(Object module, Writer out) throws IOException;
+}
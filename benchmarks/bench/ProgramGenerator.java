@@ -0,0 +1,64 @@
+package bench;
+
+/* synthetic MiniJava programs for the benchmarks, growing along four axes: number of classes, length of the
+   inheritance chains, statements per method and nesting depth of expressions */
+public final class ProgramGenerator {
+    private static final String[] OPERATORS = {"+", "-", "*"};
+
+    private ProgramGenerator() {
+    }
+
+    /**
+     * Every class overrides run (so message sends on it stay polymorphic), owns a getter/setter pair and a
+     * long straight-line method; classes are chained by extends, depth classes per chain.
+     */
+    public static String generate(int classes, int depth, int statements, int nesting) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("class Main {\n    public static void main(String[] args) {\n        {\n");
+        for (int c = 0; c < classes; c++)
+            sb.append("            System.out.println(new C").append(c).append("().run(10));\n");
+        sb.append("        }\n    }\n}\n\n");
+
+        for (int c = 0; c < classes; c++) {
+            sb.append("class C").append(c);
+            if (c % depth != 0)
+                sb.append(" extends C").append(c - 1);
+            sb.append(" {\n    int f").append(c).append(";\n    int[] a").append(c).append(";\n\n");
+
+            sb.append("    public int get").append(c).append("() {\n        return f").append(c).append(";\n    }\n\n");
+            sb.append("    public int set").append(c).append("(int v) {\n        f").append(c).append(" = v;\n        return v;\n    }\n\n");
+
+            sb.append("    public int run(int n) {\n        int i;\n        int s;\n")
+              .append("        a").append(c).append(" = new int[n];\n        i = 0;\n        s = 0;\n")
+              .append("        while (i < n) {\n")
+              .append("            a").append(c).append("[i] = ").append(nest(nesting, "i")).append(";\n")
+              .append("            s = s + (a").append(c).append("[i]);\n")
+              .append("            i = i + 1;\n        }\n")
+              .append("        s = s + (this.work").append(c).append("(n));\n")
+              .append("        return s;\n    }\n\n");
+
+            sb.append("    public int work").append(c).append("(int n) {\n        int x;\n        int y;\n        boolean b;\n        x = n;\n        y = 0;\n");
+            for (int j = 0; j < statements; j++) {
+                switch (j % 6) {
+                    case 0: sb.append("        x = ").append(nest(nesting, "y")).append(";\n"); break;
+                    case 1: sb.append("        y = x + ").append(j).append(";\n"); break;
+                    case 2: sb.append("        if (x < y)\n            x = y;\n        else\n            y = x;\n"); break;
+                    case 3: sb.append("        b = (x < n) && (y < n);\n"); break;
+                    case 4: sb.append("        x = this.set").append(c).append("(x);\n"); break;
+                    default: sb.append("        y = this.get").append(c).append("();\n"); break;
+                }
+            }
+            sb.append("        return x + y;\n    }\n}\n\n");
+        }
+        return sb.toString();
+    }
+
+    /* (((var - 1) * 2) + 3) ... depth levels deep */
+    private static String nest(int depth, String var) {
+        String expr = var;
+        for (int d = 1; d <= depth; d++)
+            expr = "(" + expr + " " + OPERATORS[d % OPERATORS.length] + " " + d + ")";
+        return expr;
+    }
+}
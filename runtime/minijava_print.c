@@ -0,0 +1,59 @@
+/* System.out.println of programs compiled with --buffered-print, linked in with the generated code:
+
+        clang tests/in/A.ll runtime/minijava_print.c -o A
+
+   Without it every println is a printf call, which parses its format string and takes the lock of stdout each
+   time. Here numbers are converted by hand into a 64K buffer, written out in one go when it fills up, before an
+   out of bounds error is reported (the generated @throw_oob calls mj_flush) and when the program exits */
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#define BUFFER_SIZE (64 * 1024)
+#define MAX_LINE 12                 /* "-2147483648\n" */
+
+static char buffer[BUFFER_SIZE];
+static size_t used;
+
+void mj_flush(void) {
+    if (used > 0) {
+        fwrite(buffer, 1, used, stdout);
+        used = 0;
+    }
+    fflush(stdout);
+}
+
+static void __attribute__((constructor)) flush_at_exit(void) {
+    atexit(mj_flush);
+}
+
+void print_int(int32_t i) {
+    char line[MAX_LINE], *start = line + MAX_LINE;
+    uint32_t n = i < 0 ? 0u - (uint32_t) i : (uint32_t) i;
+
+    *--start = '\n';
+    do {
+        *--start = (char) ('0' + n % 10);
+        n /= 10;
+    } while (n != 0);
+    if (i < 0)
+        *--start = '-';
+
+    if (used > BUFFER_SIZE - MAX_LINE)
+        mj_flush();
+    memcpy(buffer + used, start, (size_t) (line + MAX_LINE - start));
+    used += (size_t) (line + MAX_LINE - start);
+}
+
+void print_bool(_Bool b) {
+    if (used > BUFFER_SIZE - MAX_LINE)
+        mj_flush();
+    if (b) {
+        memcpy(buffer + used, "true\n", 5);
+        used += 5;
+    } else {
+        memcpy(buffer + used, "false\n", 6);
+        used += 6;
+    }
+}
@@ -0,0 +1,242 @@
+/* heap of programs compiled with --gc, linked in with the generated code:
+
+        clang tests/in/A.ll runtime/minijava_rt.c -o A
+
+   Objects and arrays are bump allocated in 256K blocks through mj_top/mj_limit (the compiler inlines the fast
+   path, see HeapAllocation.java, and calls mj_new when a block is full). Each one is preceded by a one word header
+   pointing to its gc map, emitted per class from ClassData.vars by MyUtils.declareGcMaps:
+
+        [size in bytes, number of pointer fields, offset of each]       size is -1 for int arrays
+
+   When no free block is left and the heap holds heap_limit blocks, mark-sweep collects garbage:
+     - mark: every word on the stack (callee saved registers are spilled there by setjmp first) pointing into a
+       block marks the block live. All objects of a live block are walked with their gc maps, and the blocks their
+       pointer fields point into are marked in turn: roots are conservative, the heap is scanned precisely
+     - sweep: blocks left unmarked hold nothing reachable, they are zeroed and reused; large objects have a
+       block of their own, which goes back to the system
+   Liveness is kept per block, a live block keeps its dead objects until all of it is dead; that suits programs
+   whose temporaries die young and together, which is most of them. heap_limit doubles whenever more than half
+   of the heap survives. One thread allocates, as generated programs have just one */
+#define _GNU_SOURCE
+#include <setjmp.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <pthread.h>
+#endif
+
+#define BLOCK_SIZE (256 * 1024)
+#define HEADER_SIZE 8
+#define LARGE_OBJECT (64 * 1024)    /* HeapAllocation.MAX_INLINE_SIZE, objects above it get a block of their own */
+
+typedef struct {
+    int32_t size;
+    int32_t pointers;
+    int32_t offsets[];
+} gc_map;
+
+typedef struct {
+    char *start, *end;
+    char *fill;                     /* objects take [start, fill) */
+    int live;
+    int large;
+} block;
+
+/* the nursery block allocations are bumped into, read and written by the generated code */
+_Thread_local char *mj_top, *mj_limit;
+
+static block *blocks;               /* sorted by start address */
+static size_t block_count, block_capacity;
+static char *current;               /* start of the block mj_top points into */
+static size_t heap_limit = 64;      /* blocks allowed before collecting */
+static size_t *marked;              /* indices of live blocks whose objects have not been scanned yet */
+static size_t marked_count, marked_capacity;
+static char *stack_top;
+
+static void out_of_memory(void) {
+    fprintf(stderr, "Out of memory\n");
+    exit(1);
+}
+
+static void *grow(void *array, size_t *capacity, size_t element) {
+    *capacity = *capacity ? 2 * *capacity : 64;
+    array = realloc(array, *capacity * element);
+    if (array == NULL)
+        out_of_memory();
+    return array;
+}
+
+static block *find_block(const char *p) {
+    size_t low = 0, high = block_count;
+    while (low < high) {
+        size_t middle = low + (high - low) / 2;
+        if (p < blocks[middle].start)
+            high = middle;
+        else if (p >= blocks[middle].end)
+            low = middle + 1;
+        else
+            return &blocks[middle];
+    }
+    return NULL;
+}
+
+static block *add_block(size_t size, int large) {
+    char *start = calloc(1, size);
+    size_t i;
+    if (start == NULL)
+        out_of_memory();
+    if (block_count == block_capacity)
+        blocks = grow(blocks, &block_capacity, sizeof(block));
+
+    for (i = block_count; i > 0 && blocks[i - 1].start > start; i--)
+        blocks[i] = blocks[i - 1];
+    blocks[i].start = blocks[i].fill = start;
+    blocks[i].end = start + size;
+    blocks[i].live = 0;
+    blocks[i].large = large;
+    block_count++;
+    return &blocks[i];
+}
+
+static char *find_stack_top(void) {
+#if defined(_WIN32)
+    ULONG_PTR low, high;
+    GetCurrentThreadStackLimits(&low, &high);
+    return (char *) high;
+#elif defined(__APPLE__)
+    return pthread_get_stackaddr_np(pthread_self());
+#else
+    pthread_attr_t attr;
+    void *address;
+    size_t size;
+    pthread_getattr_np(pthread_self(), &attr);
+    pthread_attr_getstack(&attr, &address, &size);
+    pthread_attr_destroy(&attr);
+    return (char *) address + size;
+#endif
+}
+
+/* header plus object, rounded up to keep the next header aligned */
+static size_t object_size(const char *header) {
+    const gc_map *map = *(const gc_map * const *) header;
+    size_t size = map->size >= 0 ? (size_t) map->size : 4 * ((size_t) *(const int32_t *) (header + HEADER_SIZE) + 1);
+    return HEADER_SIZE + (size + 7) / 8 * 8;
+}
+
+static void mark(const char *p) {
+    block *b = find_block(p);
+    if (b == NULL || b->live)
+        return;
+    b->live = 1;
+    if (marked_count == marked_capacity)
+        marked = grow(marked, &marked_capacity, sizeof(size_t));
+    marked[marked_count++] = (size_t) (b - blocks);
+}
+
+static void scan_block(const block *b) {
+    const char *header;
+    int32_t i;
+    for (header = b->start; header < b->fill; header += object_size(header)) {
+        const gc_map *map = *(const gc_map * const *) header;
+        for (i = 0; i < map->pointers; i++)
+            mark(*(char * const *) (header + HEADER_SIZE + map->offsets[i]));
+    }
+}
+
+static void __attribute__((noinline)) scan_stack(void) {
+    jmp_buf registers;
+    char **word;
+    setjmp(registers);
+    for (word = (char **) ((uintptr_t) &registers & ~(uintptr_t) 7); (char *) word < stack_top; word++)
+        mark(*word);
+}
+
+static void collect(void) {
+    size_t i, kept = 0, live = 0;
+    block *b;
+
+    if (current != NULL)
+        find_block(current)->fill = mj_top;
+    for (i = 0; i < block_count; i++)
+        blocks[i].live = 0;
+
+    scan_stack();
+    while (marked_count > 0)
+        scan_block(&blocks[marked[--marked_count]]);
+
+    for (i = 0; i < block_count; i++) {
+        b = &blocks[i];
+        if (b->live) {
+            live++;
+        } else if (b->large) {
+            free(b->start);
+            continue;
+        } else {
+            memset(b->start, 0, (size_t) (b->fill - b->start));
+            b->fill = b->start;
+        }
+        blocks[kept++] = *b;
+    }
+    block_count = kept;
+
+    /* the nursery block died as well, allocation continues in a free one */
+    if (current != NULL && !find_block(current)->live) {
+        current = NULL;
+        mj_top = mj_limit = NULL;
+    }
+    if (live * 2 > heap_limit)
+        heap_limit *= 2;
+}
+
+static block *find_free(void) {
+    size_t i;
+    for (i = 0; i < block_count; i++)
+        if (!blocks[i].large && blocks[i].fill == blocks[i].start && blocks[i].start != current)
+            return &blocks[i];
+    return NULL;
+}
+
+static void next_block(void) {
+    block *b;
+    if (current != NULL)
+        find_block(current)->fill = mj_top;
+
+    b = find_free();
+    if (b == NULL && block_count >= heap_limit) {
+        collect();
+        b = find_free();
+    }
+    if (b == NULL)
+        b = add_block(BLOCK_SIZE, 0);
+    current = mj_top = b->start;
+    mj_limit = b->end;
+}
+
+/* zeroed memory for an object or array of size bytes, described by map */
+char *mj_new(int32_t size, const gc_map *map) {
+    size_t total = HEADER_SIZE + ((size_t) size + 7) / 8 * 8;
+    char *header;
+
+    if (stack_top == NULL)
+        stack_top = find_stack_top();
+
+    if (total > LARGE_OBJECT) {
+        block *b;
+        if (block_count >= heap_limit)
+            collect();
+        b = add_block(total, 1);
+        b->fill = b->end;
+        header = b->start;
+    } else {
+        if (mj_top == NULL || total > (size_t) (mj_limit - mj_top))
+            next_block();
+        header = mj_top;
+        mj_top += total;
+    }
+    *(const gc_map **) header = map;
+    return header + HEADER_SIZE;
+}
@@ -0,0 +1,207 @@
+import java.util.*;
+
+/* remove array bounds checks that can never fail. A check (emitted by LLVMGenerator.checkArrayIndex) reads
+
+        %neg = icmp slt i32 %index, 0
+        %below = icmp slt i32 %index, %length
+        %ok = xor i1 %neg, %below
+        br i1 %ok, label %withinBounds_N, label %outOfBounds_N
+
+   (with a constant index constant folding leaves just "br i1 %below", "index < 0" being false)
+
+   the lower bound holds when the index is a non negative constant, or an induction variable starting at a
+   non negative value and only ever incremented while it is below some bound; the upper bound holds when the
+   check sits under the true edge of "index < length of the same array" (array lengths never change), or when
+   both the index and the length of the allocated array are constants. Works on ssa form, so runs after mem2reg */
+public class BoundsCheckElimination {
+    private final LLVMFunction function;
+    private final Map<LLVMValue, LLVMInstruction> defs;
+    private final DominatorTree dom;
+    private final Map<LLVMValue, Integer> knownLengths;   // records of form: (array allocation, constant length)
+    private final Map<LLVMValue, LLVMBlock> defBlocks;
+    private Set<LLVMValue> nonNegative;
+
+    private BoundsCheckElimination(LLVMFunction function) {
+        this.function = function;
+        this.defs = function.getDefinitions();
+        this.dom = new DominatorTree(function);
+        this.knownLengths = new HashMap<>();
+        this.defBlocks = new HashMap<>();
+    }
+
+    public static void run(LLVMFunction function) {
+        function.removeUnreachableBlocks();
+        new BoundsCheckElimination(function).eliminate();
+        function.removeUnreachableBlocks();
+    }
+
+    private void eliminate() {
+        for (LLVMBlock block : this.function.blocks) {
+            for (LLVMInstruction instr : block.instructions) {
+                if (instr.result != null)
+                    this.defBlocks.put(instr.result, block);
+
+                /* the length is stored at index 0 right after calloc'ing the array (or giving it stack space) */
+                if (instr.opcode == LLVMInstruction.Opcode.STORE && instr.operands.get(0).isConstant() && "i32".equals(instr.operands.get(0).getType())) {
+                    LLVMValue array = this.stripCasts(instr.operands.get(1));
+                    LLVMInstruction def = this.defs.get(array);
+                    boolean isAllocation = def != null && (HeapAllocation.isAllocation(def)
+                            || (def.opcode == LLVMInstruction.Opcode.ALLOCA && def.type.startsWith("[")));
+                    if (isAllocation)
+                        this.knownLengths.putIfAbsent(array, instr.operands.get(0).intValue());
+                }
+            }
+        }
+        this.nonNegative = this.findNonNegative();
+
+        for (LLVMBlock block : this.function.blocks) {
+            LLVMInstruction br = block.getTerminator();
+            if (br == null || br.opcode != LLVMInstruction.Opcode.BR || br.operands.isEmpty())
+                continue;
+
+            LLVMInstruction ok = this.defs.get(br.operands.get(0)), neg = null, below;
+            if (ok == null || !throwsOutOfBounds(br.targets.get(1)))
+                continue;
+            if (ok.opcode == LLVMInstruction.Opcode.ICMP_SLT) {
+                /* the lower bound is already gone: a constant index made "index < 0" false and the xor its other operand */
+                below = ok;
+            } else if (ok.opcode == LLVMInstruction.Opcode.XOR) {
+                neg = this.defs.get(ok.operands.get(0));
+                below = this.defs.get(ok.operands.get(1));
+                if (neg == null || below == null || neg.opcode != LLVMInstruction.Opcode.ICMP_SLT || below.opcode != LLVMInstruction.Opcode.ICMP_SLT)
+                    continue;
+            } else {
+                continue;
+            }
+
+            LLVMValue index = below.operands.get(0), length = below.operands.get(1);
+            boolean lowerOk = neg == null || this.isNonNegative(index), upperOk = this.isBelowLength(index, length, block);
+            LLVMBlock within = br.targets.get(0), outOfBounds = br.targets.get(1);
+
+            if (lowerOk && upperOk) {
+                block.instructions.set(block.instructions.size() - 1, LLVMInstruction.br(within));
+            } else if (lowerOk && neg != null) {
+                br.operands.set(0, below.result);
+            } else if (upperOk) {
+                block.instructions.set(block.instructions.size() - 1, LLVMInstruction.br(neg.result, outOfBounds, within));
+            }
+        }
+    }
+
+    static boolean throwsOutOfBounds(LLVMBlock block) {
+        for (LLVMInstruction instr : block.instructions)
+            if (instr.opcode == LLVMInstruction.Opcode.CALL && "@throw_oob".equals(instr.operands.get(0).getName()))
+                return true;
+        return false;
+    }
+
+    private LLVMValue stripCasts(LLVMValue value) {
+        LLVMInstruction def;
+        while ((def = this.defs.get(value)) != null && def.opcode == LLVMInstruction.Opcode.BITCAST)
+            value = def.operands.get(0);
+        return value;
+    }
+
+    /* if value is a load of the length slot of an array, return the array (casts stripped), else null */
+    private LLVMValue arrayOfLength(LLVMValue value) {
+        LLVMInstruction load = this.defs.get(value), gep;
+        if (load == null || load.opcode != LLVMInstruction.Opcode.LOAD)
+            return null;
+        gep = this.defs.get(load.operands.get(0));
+        if (gep == null || gep.opcode != LLVMInstruction.Opcode.GETELEMENTPTR || gep.operands.size() != 2
+                || !gep.operands.get(1).isConstant() || gep.operands.get(1).intValue() != 0)
+            return null;
+        return this.stripCasts(gep.operands.get(0));
+    }
+
+    private boolean isBelowLength(LLVMValue index, LLVMValue length, LLVMBlock block) {
+        LLVMValue array = this.arrayOfLength(length);
+        Integer known = array == null ? null : this.knownLengths.get(array);
+
+        if (index.isConstant() && known != null && index.intValue() < known)
+            return true;
+
+        for (LLVMValue bound : this.dominatingUpperBounds(index, block)) {
+            if (bound.equals(length))
+                return true;
+            LLVMValue boundArray = this.arrayOfLength(bound);
+            if (array != null && array.equals(boundArray))
+                return true;
+            if (bound.isConstant() && known != null && bound.intValue() <= known)
+                return true;
+        }
+        return false;
+    }
+
+    /* every y such that "value < y" is known to hold on entry to block: conditions on the true edge of a branch
+       into a block with a single predecessor hold in all the blocks it dominates */
+    private List<LLVMValue> dominatingUpperBounds(LLVMValue value, LLVMBlock block) {
+        List<LLVMValue> bounds = new ArrayList<>();
+
+        for (LLVMBlock b = block; ; b = this.dom.idom.get(b)) {
+            List<LLVMBlock> preds = this.dom.predecessors.get(b);
+            if (preds.size() == 1) {
+                LLVMInstruction br = preds.get(0).getTerminator();
+                if (br.opcode == LLVMInstruction.Opcode.BR && br.targets.size() == 2 && br.targets.get(0) == b && br.targets.get(1) != b) {
+                    LLVMInstruction cond = this.defs.get(br.operands.get(0));
+                    if (cond != null && cond.opcode == LLVMInstruction.Opcode.ICMP_SLT && cond.operands.get(0).equals(value))
+                        bounds.add(cond.operands.get(1));
+                }
+            }
+            if (this.dom.idom.get(b) == b)
+                break;
+        }
+        return bounds;
+    }
+
+    private boolean isNonNegative(LLVMValue value) {
+        return value.isConstant() ? value.intValue() >= 0 : this.nonNegative.contains(value);
+    }
+
+    /* optimistic fixed point: assume every phi and add is non negative, then drop those that break the rules
+       until nothing changes. x + 1 only counts when x < y is known there, so it cannot wrap around */
+    private Set<LLVMValue> findNonNegative() {
+        Map<LLVMValue, LLVMInstruction> candidates = new LinkedHashMap<>();
+        for (LLVMInstruction instr : this.defs.values())
+            if (instr.opcode == LLVMInstruction.Opcode.PHI || instr.opcode == LLVMInstruction.Opcode.ADD)
+                if ("i32".equals(instr.result.getType()))
+                    candidates.put(instr.result, instr);
+
+        Set<LLVMValue> assumed = new HashSet<>(candidates.keySet());
+        this.nonNegative = assumed;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (LLVMInstruction instr : candidates.values()) {
+                if (assumed.contains(instr.result) && !this.staysNonNegative(instr)) {
+                    assumed.remove(instr.result);
+                    changed = true;
+                }
+            }
+        }
+        return assumed;
+    }
+
+    private boolean staysNonNegative(LLVMInstruction instr) {
+        if (instr.opcode == LLVMInstruction.Opcode.PHI) {
+            for (LLVMValue incoming : instr.operands)
+                if (!this.isNonNegative(incoming))
+                    return false;
+            return true;
+        }
+
+        LLVMValue left = instr.operands.get(0), right = instr.operands.get(1);
+        if (left.isConstant()) {
+            LLVMValue tmp = left;
+            left = right;
+            right = tmp;
+        }
+        if (!right.isConstant() || right.intValue() < 0 || right.intValue() > 1 || !this.isNonNegative(left))
+            return false;
+        if (right.intValue() == 0)
+            return true;
+        if (left.isConstant())
+            return left.intValue() < Integer.MAX_VALUE;
+        return !this.dominatingUpperBounds(left, this.defBlocks.get(instr.result)).isEmpty();
+    }
+}
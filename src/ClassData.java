@@ -1,60 +1,125 @@
-import javafx.util.Pair;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.LinkedHashMap; 
+import java.util.LinkedHashSet;
 
 /* for each class, store some meta data */
 public class ClassData{
     String parentName;
-    int size;
-    Map <String, Pair<String, Integer>> vars;       // records of form: (variable_name, (type, offset))
+    int size;                           // bytes of an object; until laid out, also the offset of the next field a subclass adds
+    SymbolTable vars;                   // records of form: (variable_name, type, offset)
     Map <String, MethodData> methods;    // records of form: (function_name, (class_that_last_implemented_it, return_type, offset, argTypes))
-    public static final Integer pointerSize = 8;
-
-    /* map all mini java data types to their actual size in bytes */
-    private static final Map<String, Pair<Integer,String>> sizes = new LinkedHashMap<String, Pair<Integer,String>>() {
-        private static final long serialVersionUID = 1L;
-        {
-            put("boolean", new Pair<Integer,String>(1, "i1"));
-            put("integer", new Pair<Integer,String>(4, "i32"));
-            put("array", new Pair<Integer,String>(8, "i8*"));
-        }
-    };
+    List<String> structFields;          // llvm types of the elements of the class' struct type, vTable pointer first; null until laid out
+    int[] fieldIndex;                   // for each entry of vars, the index of its element in the struct type
+    int[] structOffsets;                // byte offset of each element of structFields, inherited ones the same as in the parent
+    List<Integer> pointerOffsets;       // byte offsets of the fields holding pointers, inherited ones included; null until MyUtils.declareGcMaps
+    int end;                            // offset right past the last field
+    int paddingSaved;                   // bytes saved over laying the fields out in declaration order
+    public static final int pointerSize = 8;
 
     public ClassData(String parent){
         this.parentName = parent;
-        this.vars = new LinkedHashMap<String, Pair<String, Integer>>();
+        this.vars = new SymbolTable();
         this.methods = new LinkedHashMap<String, MethodData>();
     }
 
-    public static final Pair<Integer, String> getSize(String type){
-        if(ClassData.sizes.containsKey(type))
-            return ClassData.sizes.get(type);
-        else 
-            return new Pair<Integer, String>(ClassData.pointerSize, "i8*");
+    /* round offset up to a multiple of alignment */
+    private static int align(int offset, int alignment){
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    /* name of the llvm struct type of a class */
+    public static String structType(String className){
+        return "%class." + className;
     }
 
-    public void setSize(){
-        int size = 0;
-        String type;
-        if(this.vars.size() > 0){
-            for(Map.Entry<String, Pair<String, Integer>> entry : this.vars.entrySet()){
-                type = entry.getValue().getKey();
-                size += ClassData.sizes.containsKey(type) ? ClassData.sizes.get(type).getKey() : ClassData.pointerSize; 
+    /* names of the classes with every parent ahead of its subclasses, declaration order otherwise */
+    public static List<String> topologicalOrder(Map<String, ClassData> classes){
+        List<String> order = new ArrayList<>(classes.size());
+        Set<String> placed = new HashSet<>();
+
+        for(String name : classes.keySet()){
+            /* the ancestors not placed yet, nearest first; a loop in the hierarchy ends the walk */
+            Deque<String> chain = new ArrayDeque<>();
+            Set<String> seen = new LinkedHashSet<>();
+            for(String c = name; c != null && classes.containsKey(c) && !placed.contains(c) && seen.add(c); c = classes.get(c).parentName)
+                chain.push(c);
+            while(!chain.isEmpty()){
+                placed.add(chain.peek());
+                order.add(chain.pop());
             }
         }
-        this.size = size + ClassData.pointerSize;
+        return order;
     }
 
-    /* given a variable_name to (type, offset) map, calculate the exact memory address for the next variable to be stored */
-    public int getOffsetOfNextVar(){
-        int offset = 0;
-        String type;
+    /* lay out the fields of every class as a naturally aligned struct, parents before their subclasses.
+       A class starts with the fields of its parent at their offsets, so a subclass object can be used as a parent one,
+       its own fields follow sorted by decreasing size, which leaves padding only where the inherited part ends and at the end */
+    public static void layOut(Map<String, ClassData> classes){
+        Map<String, SymbolTable> declared = new LinkedHashMap<>();
 
-        /* run through each variable entry and sum up the sizes */
-        for(Map.Entry<String, Pair<String, Integer>> var: this.vars.entrySet()){
-            type = var.getValue().getKey();
-            offset += ClassData.getSize(type).getKey();
+        /* fields a class declares itself: those its parent does not have, or shadows with a field of the same name.
+           Either way they were placed past the fields of the parent, so the offset alone tells */
+        for(Map.Entry<String, ClassData> entry : classes.entrySet()){
+            ClassData parent = entry.getValue().parentName == null ? null : classes.get(entry.getValue().parentName);
+            SymbolTable vars = entry.getValue().vars, own = new SymbolTable();
+            for(int i = 0; i < vars.size(); i++){
+                if(parent == null || vars.value(i) >= parent.size)
+                    own.put(vars.name(i), vars.type(i), vars.value(i));
+            }
+            declared.put(entry.getKey(), own);
+        }
+
+        for(String name : ClassData.topologicalOrder(classes)){
+            ClassData cd = classes.get(name);
+            cd.layOut(cd.parentName == null ? null : classes.get(cd.parentName), declared.get(name));
         }
-        return offset + ClassData.pointerSize;
+    }
+
+    private void layOut(ClassData parent, SymbolTable own){
+        int offset = (parent == null) ? ClassData.pointerSize : parent.end, naive = offset, size;
+        List<Integer> fields = new ArrayList<>();
+
+        /* what declaration order would cost, to report the difference */
+        for(int i = 0; i < own.size(); i++){
+            size = Types.size(own.type(i));
+            naive = ClassData.align(naive, size) + size;
+            fields.add(i);
+        }
+
+        this.vars = (parent == null) ? new SymbolTable() : new SymbolTable(parent.vars);
+        int[] index = new int[this.vars.size() + own.size()];
+        if(parent != null)
+            System.arraycopy(parent.fieldIndex, 0, index, 0, parent.vars.size());
+        this.structFields = new ArrayList<>();
+        if(parent == null)
+            this.structFields.add("i8*");
+        else
+            this.structFields.addAll(parent.structFields);
+        int[] offsets = Arrays.copyOf(parent == null ? new int[1] : parent.structOffsets, this.structFields.size() + own.size());
+
+        /* stable sort, fields of the same size keep their declaration order */
+        fields.sort((a, b) -> Types.size(own.type(b)) - Types.size(own.type(a)));
+        for(int field : fields){
+            int type = own.type(field);
+            size = Types.size(type);
+            offset = ClassData.align(offset, size);
+            index[this.vars.put(own.name(field), type, offset)] = this.structFields.size();
+            offsets[this.structFields.size()] = offset;
+            this.structFields.add(Types.llvmType(type));
+            offset += size;
+        }
+
+        this.fieldIndex = index;
+        this.structOffsets = offsets;
+        this.end = offset;
+        this.size = ClassData.align(offset, ClassData.pointerSize);
+        this.paddingSaved = ClassData.align(naive, ClassData.pointerSize) - this.size;
     }
 }
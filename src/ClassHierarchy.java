@@ -0,0 +1,43 @@
+import java.util.*;
+
+/* class hierarchy analysis over the data collected by the first pass: which method bodies a message send may reach,
+   given the static class of its receiver */
+public class ClassHierarchy {
+    private final Map<String, ClassData> classes;
+    private final Map<String, List<String>> subclasses;   // records of form: (class_name, classes directly extending it)
+
+    public ClassHierarchy(Map<String, ClassData> classes) {
+        this.classes = classes;
+        this.subclasses = new HashMap<>();
+        for (Map.Entry<String, ClassData> entry : classes.entrySet()) {
+            String parent = entry.getValue().parentName;
+            if (parent != null)
+                this.subclasses.computeIfAbsent(parent, k -> new ArrayList<>()).add(entry.getKey());
+        }
+    }
+
+    /**
+     * Return the class whose implementation of method runs for every possible receiver of static class
+     * className, or null if the receiver's subclasses override it (or nothing is known about the class).
+     */
+    public String uniqueImplementation(String className, String method) {
+        String target = null;
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(className);
+
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            ClassData cd = this.classes.get(name);
+            MethodData md = cd == null ? null : cd.methods.get(method);
+            if (md == null)
+                return null;
+            if (target == null)
+                target = md.className;
+            else if (!target.equals(md.className))
+                return null;
+            for (String sub : this.subclasses.getOrDefault(name, Collections.emptyList()))
+                pending.push(sub);
+        }
+        return target;
+    }
+}
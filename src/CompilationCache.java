@@ -0,0 +1,245 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/* on-disk cache of the generated (and optimized) methods of a source file, one directory per file holding
+       <class>.meta            key of the class, then its fields, the methods it declares (each followed by the
+                               message sends it dispatches through a vTable, for Reachability) and the classes
+                               whose methods got inlined into them (with their token hash)
+       <class>.<method>.ll     ir text of each of those methods
+   the key of a class hashes its tokens (whitespace and comments left out) and the key of its parent, so a change
+   anywhere up the parent chain reaches it; since generated code refers to offsets and signatures of other classes,
+   the layout of all classes and the options are hashed in as well. Editing a method body leaves the layout as it
+   was, so every other class is reused and only the edited one gets generated and optimized again; a class holding
+   inlined copies of the edited methods is regenerated as well */
+public class CompilationCache {
+    private static final String VERSION = "2";  // bump whenever the generated code changes for the same input
+    private final Path dir;
+    private final Map<String, String> keys;     // records of form: (class_name, key)
+    private final Map<String, String> tokenKeys;    // same, without the layout: the tokens chained with the parents'
+    private final Set<String> reused;
+    private String mainClass;
+    private Types types;                        // type ids of the compilation the keys were computed for
+
+    CompilationCache(Path dir) {
+        this.dir = dir;
+        this.keys = new LinkedHashMap<>();
+        this.tokenKeys = new LinkedHashMap<>();
+        this.reused = new HashSet<>();
+    }
+
+    /* the cache of Foo.java lives in Foo.llcache next to it */
+    public static CompilationCache forSource(String file) {
+        return new CompilationCache(Paths.get(file.replace(".java", ".llcache")));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void update(MessageDigest md, String text) {
+        md.update(text.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    private static void updateTokens(MessageDigest md, TokenStream tokens, ParserRuleContext ctx) {
+        for (int i = ctx.getStart().getTokenIndex(); i <= ctx.getStop().getTokenIndex(); i++) {
+            Token token = tokens.get(i);
+            if (token.getChannel() == Token.DEFAULT_CHANNEL)
+                update(md, token.getText());
+        }
+    }
+
+    /* everything generated code may depend on besides the tokens of its own class */
+    private static String layout(Map<String, ClassData> classes, Types types, Options options) {
+        MessageDigest md = sha256();
+        update(md, VERSION);
+        update(md, options.signature());
+        for (Map.Entry<String, ClassData> entry : classes.entrySet()) {
+            ClassData cd = entry.getValue();
+            update(md, "class " + entry.getKey() + " " + cd.parentName + " " + cd.size);
+            for (int i = 0; i < cd.vars.size(); i++)
+                update(md, "field " + cd.vars.name(i) + " " + types.name(cd.vars.type(i)) + " " + cd.vars.value(i));
+            for (Map.Entry<String, MethodData> method : cd.methods.entrySet())
+                update(md, "method " + method.getKey() + " " + describe(method.getValue(), types));
+        }
+        return hex(md.digest());
+    }
+
+    private static String describe(MethodData md, Types types) {
+        StringBuilder sb = new StringBuilder(md.className + " " + md.returnType + " " + md.offset);
+        if (md.arguments != null)
+            for (int i = 0; i < md.arguments.size(); i++)
+                sb.append(" ").append(types.name(md.arguments.type(i)));
+        return sb.toString();
+    }
+
+    /**
+     * Compute the key of every class of a parsed file, the main class included.
+     */
+    public void computeKeys(JavaParser.GoalContext goal, TokenStream tokens, Map<String, ClassData> classes, Types types, Options options) {
+        this.types = types;
+        String layout = layout(classes, types, options);
+        Map<String, String> own = this.tokenKeys;
+
+        MessageDigest md = sha256();
+        updateTokens(md, tokens, goal.mainClass());
+        this.mainClass = goal.mainClass().identifier(0).IDENTIFIER().getText();
+        own.put(this.mainClass, hex(md.digest()));
+
+        for (JavaParser.TypeDeclarationContext type : goal.typeDeclaration()) {
+            String name, parent = null;
+            ParserRuleContext decl;
+            if (type.classDeclaration() != null) {
+                decl = type.classDeclaration();
+                name = type.classDeclaration().identifier().IDENTIFIER().getText();
+            } else {
+                decl = type.classExtendsDeclaration();
+                name = type.classExtendsDeclaration().identifier(0).IDENTIFIER().getText();
+                parent = type.classExtendsDeclaration().identifier(1).IDENTIFIER().getText();
+            }
+
+            md = sha256();
+            updateTokens(md, tokens, decl);
+            if (parent != null)
+                update(md, own.getOrDefault(parent, parent));
+            own.put(name, hex(md.digest()));
+        }
+
+        for (Map.Entry<String, String> entry : own.entrySet()) {
+            md = sha256();
+            update(md, entry.getValue());
+            update(md, layout);
+            this.keys.put(entry.getKey(), hex(md.digest()));
+        }
+    }
+
+    private Path metaFile(String className) {
+        return this.dir.resolve(className + ".meta");
+    }
+
+    private Path irFile(String className, String method) {
+        return this.dir.resolve(className + "." + method + ".ll");
+    }
+
+    /**
+     * Return the cached methods of a class, or null if the class has to be generated again.
+     */
+    public List<LLVMFunction> load(String className) throws IOException {
+        String key = this.keys.get(className);
+        Path meta = this.metaFile(className);
+        if (key == null || !Files.exists(meta))
+            return null;
+
+        List<String> lines = Files.readAllLines(meta, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals("key " + key))
+            return null;
+
+        List<LLVMFunction> functions = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith("uses ")) {
+                String[] fields = line.split(" ");  // uses <class> <token_key>
+                if (!fields[2].equals(this.tokenKeys.get(fields[1])))
+                    return null;
+            }
+            if (line.startsWith("sends ") && !functions.isEmpty()) {
+                String[] fields = line.split(" ");  // sends <name> <class>.<method>...
+                functions.get(functions.size() - 1).sends.addAll(Arrays.asList(fields).subList(2, fields.length));
+            }
+            if (!line.startsWith("method "))
+                continue;
+            String[] fields = line.split(" ");      // method <name> <function_name> <return_type>
+            Path ir = this.irFile(className, fields[1]);
+            if (!Files.exists(ir))
+                return null;
+            functions.add(LLVMFunction.cached(fields[2], fields[3], new String(Files.readAllBytes(ir), StandardCharsets.UTF_8)));
+        }
+        this.reused.add(className);
+        return functions;
+    }
+
+    /**
+     * Load every class whose key is still valid, records of form: (class_name, cached methods).
+     */
+    public Map<String, List<LLVMFunction>> loadAll() throws IOException {
+        Map<String, List<LLVMFunction>> cached = new HashMap<>();
+        for (String className : this.keys.keySet()) {
+            List<LLVMFunction> functions = this.load(className);
+            if (functions != null)
+                cached.put(className, functions);
+        }
+        return cached;
+    }
+
+    /**
+     * Store the methods of every class of the module that was generated in this run.
+     */
+    public void store(LLVMModule module, Map<String, ClassData> classes) throws IOException {
+        Files.createDirectories(this.dir);
+
+        for (Map.Entry<String, String> entry : this.keys.entrySet()) {
+            String className = entry.getKey();
+            if (this.reused.contains(className))
+                continue;
+
+            StringBuilder meta = new StringBuilder("key " + entry.getValue() + "\n");
+            ClassData cd = classes.get(className);
+            if (cd != null) {
+                for (int i = 0; i < cd.vars.size(); i++)
+                    meta.append("field ").append(cd.vars.name(i)).append(" ").append(this.types.name(cd.vars.type(i))).append(" ").append(cd.vars.value(i)).append("\n");
+            }
+
+            /* functions of a class are named <class>.<method>, the main class only has main */
+            Set<String> uses = new TreeSet<>();
+            for (LLVMFunction function : module.functions) {
+                String name = function.getName(), method;
+                if (name.startsWith(className + "."))
+                    method = name.substring(className.length() + 1);
+                else if (name.equals("main") && className.equals(this.mainClass))
+                    method = "main";
+                else
+                    continue;
+
+                StringWriter text = new StringWriter();
+                function.print(text);
+                write(this.irFile(className, method), text.toString());
+                meta.append("method ").append(method).append(" ").append(name).append(" ").append(function.getReturnType()).append("\n");
+                if (!function.sends.isEmpty())
+                    meta.append("sends ").append(method).append(" ").append(String.join(" ", function.sends)).append("\n");
+                for (String callee : function.inlined)
+                    uses.add(callee.substring(0, Math.max(0, callee.indexOf('.'))));
+            }
+            for (String used : uses)
+                if (!used.equals(className) && this.tokenKeys.containsKey(used))
+                    meta.append("uses ").append(used).append(" ").append(this.tokenKeys.get(used)).append("\n");
+
+            /* the meta file goes last, a run interrupted before it leaves the class looking uncached */
+            write(this.metaFile(className), meta.toString());
+        }
+    }
+
+    private static void write(Path file, String text) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/* long running compiler: keeps one JVM (and so ANTLR's ATN, DFA cache and JIT'ed code) alive across compile requests
+
+   protocol, one request per line:
+        [options] File.java [Other.java ...]    options as on the command line (--offsets, --no-<pass>, ...),
+                                                compile the files, answer with their reports followed by
+                                                "ok <file> <millis> ms" or "error <file> <message>" for each one.
+                                                --stdout is refused: the ir would end up inside the answers
+        quit                                    close the session
+*/
+public class CompileServer {
+
+    /**
+     * Serve requests read from in until quit or end of input.
+     */
+    public static void serve(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+            if (line.equals("quit"))
+                break;
+
+            Options options = new Options();
+            for (String arg : line.split("\\s+")) {
+                if (arg.equals("--stdout")) {
+                    out.println("error " + arg + " not supported by the server, the ir is written next to each file");
+                    continue;
+                }
+                if (options.parse(arg))
+                    continue;
+
+                long start = System.nanoTime();
+                try {
+                    out.print(Main.compile(arg, options));
+                    out.printf("ok %s %.3f ms%n", arg, (System.nanoTime() - start) / 1e6);
+                } catch (IOException | RuntimeException e) {
+                    out.println("error " + arg + " " + e);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Accept connections on a loopback port, each one is a separate session served on its own thread.
+     */
+    public static void listen(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("listening on " + server.getLocalSocketAddress());
+
+            while (true) {
+                Socket client = server.accept();
+                Thread session = new Thread(() -> {
+                    try (Socket s = client;
+                         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                         PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                        serve(in, out);
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    }
+                });
+                session.setDaemon(true);
+                session.start();
+            }
+        }
+    }
+}
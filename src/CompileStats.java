@@ -0,0 +1,146 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/* what --stats reports about the compilation of a file: wall time and bytes allocated by each phase, and the
+   amount of code generated. Phases are laps, each one ends where the next begins. Allocations are those of the
+   compiling thread, so the workers of --parallel-methods are not included. Registers and labels are counted
+   by the States of the generator (see LLVMGenerator.setStats), possibly on several threads at once */
+public class CompileStats {
+    private final String file;
+    private final Map<String, long[]> phases;       // records of form: (phase, {nanoseconds, allocated bytes})
+    private long lapTime, lapBytes;
+    final LongAdder registers;
+    final Map<String, LongAdder> labels;            // records of form: (State label kind, labels handed out)
+    private int generated, optimized;               // instructions before and after optimization
+    private int functions, cachedFunctions;
+    private int boundsChecks;                       // checks left after optimization, see throw_oob
+    private final Map<String, Integer> vtables;     // records of form: (class_name, vtable entries)
+
+    CompileStats(String file) {
+        this.file = file;
+        this.phases = new LinkedHashMap<>();
+        this.registers = new LongAdder();
+        this.labels = new LinkedHashMap<>();
+        for (String kind : State.labelKinds())
+            this.labels.put(kind, new LongAdder());
+        this.vtables = new LinkedHashMap<>();
+        this.lapTime = System.nanoTime();
+        this.lapBytes = allocatedBytes();
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /**
+     * End the current phase, which is recorded as name, and start the next one.
+     */
+    public void lap(String name) {
+        long time = System.nanoTime(), bytes = allocatedBytes();
+        long[] phase = this.phases.computeIfAbsent(name, k -> new long[2]);
+        phase[0] += time - this.lapTime;
+        phase[1] += bytes - this.lapBytes;
+        this.lapTime = time;
+        this.lapBytes = bytes;
+    }
+
+    /**
+     * Record the size of the generated code, before (optimized = false) or after optimization.
+     */
+    public void count(LLVMModule module, boolean optimized) {
+        int instructions = 0, checks = 0;
+        this.functions = this.cachedFunctions = 0;
+        for (LLVMFunction function : module.functions) {
+            this.functions++;
+            if (function.isCached())
+                this.cachedFunctions++;
+            for (LLVMBlock block : function.blocks) {
+                instructions += block.instructions.size();
+                for (LLVMInstruction instr : block.instructions)
+                    if (instr.opcode == LLVMInstruction.Opcode.CALL && "@throw_oob".equals(instr.operands.get(0).getName()))
+                        checks++;
+            }
+        }
+        if (optimized) {
+            this.optimized = instructions;
+            this.boundsChecks = checks;
+        } else
+            this.generated = instructions;
+    }
+
+    public void countVTables(Map<String, ClassData> classes) {
+        for (Map.Entry<String, ClassData> entry : classes.entrySet())
+            this.vtables.put(entry.getKey(), entry.getValue().methods.size());
+    }
+
+    /**
+     * Human readable report, in the format of the --offsets one.
+     */
+    public String toText() {
+        StringBuilder report = new StringBuilder("Stats\n-----\n");
+        report.append("\n\tPhases\n\t------\n");
+        for (Map.Entry<String, long[]> phase : this.phases.entrySet())
+            report.append(String.format("\t\t%-10s %9.3f ms %10d KB allocated%n", phase.getKey(), phase.getValue()[0] / 1e6, phase.getValue()[1] / 1024));
+
+        report.append("\n\tCode\n\t----\n");
+        report.append("\t\tfunctions: ").append(this.functions).append(" (").append(this.cachedFunctions).append(" reused from the cache)\n");
+        report.append("\t\tinstructions: ").append(this.generated).append(" generated, ").append(this.optimized).append(" after optimization\n");
+        report.append("\t\tregisters: ").append(this.registers.sum()).append("\n");
+        report.append("\t\tlabels:");
+        for (Map.Entry<String, LongAdder> kind : this.labels.entrySet())
+            report.append(" ").append(kind.getKey()).append(" ").append(kind.getValue().sum());
+        report.append("\n\t\tbounds checks: ").append(this.labels.get("oob").sum()).append(" generated, ").append(this.boundsChecks).append(" after optimization\n");
+        report.append("\t\tvtables:");
+        for (Map.Entry<String, Integer> vtable : this.vtables.entrySet())
+            report.append(" ").append(vtable.getKey()).append(" ").append(vtable.getValue());
+        return report.append("\n").toString();
+    }
+
+    /**
+     * The same on a single line of json, e.g. to be collected by a build pipeline.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"file\": ").append(quote(this.file)).append(", \"phases\": {");
+        String sep = "";
+        for (Map.Entry<String, long[]> phase : this.phases.entrySet()) {
+            json.append(sep).append(quote(phase.getKey())).append(": {\"nanos\": ").append(phase.getValue()[0])
+                    .append(", \"allocatedBytes\": ").append(phase.getValue()[1]).append("}");
+            sep = ", ";
+        }
+        json.append("}, \"functions\": ").append(this.functions).append(", \"cachedFunctions\": ").append(this.cachedFunctions)
+                .append(", \"instructions\": {\"generated\": ").append(this.generated).append(", \"optimized\": ").append(this.optimized)
+                .append("}, \"registers\": ").append(this.registers.sum()).append(", \"labels\": {");
+        sep = "";
+        for (Map.Entry<String, LongAdder> kind : this.labels.entrySet()) {
+            json.append(sep).append(quote(kind.getKey())).append(": ").append(kind.getValue().sum());
+            sep = ", ";
+        }
+        json.append("}, \"boundsChecks\": {\"generated\": ").append(this.labels.get("oob").sum()).append(", \"optimized\": ")
+                .append(this.boundsChecks).append("}, \"vtables\": {");
+        sep = "";
+        for (Map.Entry<String, Integer> vtable : this.vtables.entrySet()) {
+            json.append(sep).append(quote(vtable.getKey())).append(": ").append(vtable.getValue());
+            sep = ", ";
+        }
+        return json.append("}}\n").toString();
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+}
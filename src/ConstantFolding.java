@@ -0,0 +1,135 @@
+import java.util.*;
+
+/* fold arithmetic, comparisons and logic on constants, propagate the results into their uses and turn branches on
+   constant conditions into unconditional ones, dropping the blocks (if/else arms, loop bodies) that become unreachable.
+   Run after mem2reg, locals assigned constants are then propagated as well */
+public class ConstantFolding {
+
+    public static void run(LLVMFunction function) {
+        Map<LLVMValue, LLVMValue> replacement = new HashMap<>();
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            boolean cfgChanged = false;
+
+            for (LLVMBlock block : function.blocks) {
+                Iterator<LLVMInstruction> it = block.instructions.iterator();
+                while (it.hasNext()) {
+                    LLVMInstruction instr = it.next();
+                    for (int i = 0; i < instr.operands.size(); i++)
+                        instr.operands.set(i, resolve(replacement, instr.operands.get(i)));
+
+                    LLVMValue folded = fold(instr);
+                    if (folded != null) {
+                        replacement.put(instr.result, folded);
+                        it.remove();
+                        changed = true;
+                    }
+                }
+
+                LLVMInstruction br = block.getTerminator();
+                if (br != null && br.opcode == LLVMInstruction.Opcode.BR && !br.operands.isEmpty() && br.operands.get(0).isConstant()) {
+                    boolean condition = br.operands.get(0).intValue() != 0;
+                    LLVMBlock taken = br.targets.get(condition ? 0 : 1), dropped = br.targets.get(condition ? 1 : 0);
+
+                    block.instructions.set(block.instructions.size() - 1, LLVMInstruction.br(taken).withComment(br.comment));
+                    if (dropped != taken)
+                        removeIncoming(dropped, block);
+                    changed = cfgChanged = true;
+                }
+            }
+
+            if (cfgChanged)
+                function.removeUnreachableBlocks();
+        }
+    }
+
+    private static LLVMValue resolve(Map<LLVMValue, LLVMValue> replacement, LLVMValue value) {
+        LLVMValue next;
+        while ((next = replacement.get(value)) != null)
+            value = next;
+        return value;
+    }
+
+    /* the pred -> block edge is gone, forget what the phis of block expected to receive over it */
+    private static void removeIncoming(LLVMBlock block, LLVMBlock pred) {
+        for (LLVMInstruction instr : block.instructions) {
+            if (instr.opcode != LLVMInstruction.Opcode.PHI)
+                continue;
+            for (int i = instr.targets.size() - 1; i >= 0; i--) {
+                if (instr.targets.get(i) == pred) {
+                    instr.targets.remove(i);
+                    instr.operands.remove(i);
+                }
+            }
+        }
+    }
+
+    static LLVMValue bool(boolean value) {
+        return LLVMValue.constant("i1", value ? "true" : "false");
+    }
+
+    /**
+     * Return the value an instruction always produces, or null if it cannot be known at compile time.
+     */
+    static LLVMValue fold(LLVMInstruction instr) {
+        switch (instr.opcode) {
+            case PHI: {
+                /* every incoming value (ignoring the phi itself) is the same one */
+                LLVMValue same = null;
+                for (LLVMValue incoming : instr.operands) {
+                    if (incoming.equals(instr.result) || incoming.equals(same))
+                        continue;
+                    if (same != null)
+                        return null;
+                    same = incoming;
+                }
+                return same;
+            }
+            case ADD:
+            case SUB:
+            case MUL:
+            case XOR:
+            case ICMP_SLT:
+                return foldBinary(instr.opcode, instr.operands.get(0), instr.operands.get(1));
+            default:
+                return null;
+        }
+    }
+
+    static LLVMValue foldBinary(LLVMInstruction.Opcode op, LLVMValue left, LLVMValue right) {
+        if (left.isConstant() && right.isConstant()) {
+            int l = left.intValue(), r = right.intValue();
+            switch (op) {
+                case ADD: return LLVMValue.constant(l + r);
+                case SUB: return LLVMValue.constant(l - r);
+                case MUL: return LLVMValue.constant(l * r);
+                case XOR: return "i1".equals(left.getType()) ? bool(((l ^ r) & 1) != 0) : LLVMValue.constant(l ^ r);
+                case ICMP_SLT: return bool(l < r);
+                default: return null;
+            }
+        }
+
+        /* identities that hold whatever the other operand is */
+        if (right.isConstant()) {
+            int r = right.intValue();
+            if ((op == LLVMInstruction.Opcode.ADD || op == LLVMInstruction.Opcode.SUB || op == LLVMInstruction.Opcode.XOR) && r == 0)
+                return left;
+            if (op == LLVMInstruction.Opcode.MUL && r == 1)
+                return left;
+            if (op == LLVMInstruction.Opcode.MUL && r == 0)
+                return right;
+        }
+        if (left.isConstant()) {
+            int l = left.intValue();
+            if ((op == LLVMInstruction.Opcode.ADD || op == LLVMInstruction.Opcode.XOR) && l == 0)
+                return right;
+            if (op == LLVMInstruction.Opcode.MUL && l == 1)
+                return right;
+            if (op == LLVMInstruction.Opcode.MUL && l == 0)
+                return left;
+        }
+        return null;
+    }
+}
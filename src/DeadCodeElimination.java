@@ -0,0 +1,36 @@
+import java.util.*;
+
+/* delete instructions whose result is never used and that do nothing besides computing it, other passes
+   rely on this to clean up after rewriting uses */
+public class DeadCodeElimination {
+
+    public static void run(LLVMFunction function) {
+        Map<LLVMValue, LLVMInstruction> defs = function.getDefinitions();
+        Map<LLVMValue, Integer> uses = new HashMap<>();
+        for (LLVMBlock block : function.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                for (LLVMValue operand : instr.operands)
+                    uses.merge(operand, 1, Integer::sum);
+
+        Deque<LLVMInstruction> work = new ArrayDeque<>();
+        for (LLVMInstruction instr : defs.values())
+            if (!instr.hasSideEffects() && !uses.containsKey(instr.result))
+                work.push(instr);
+
+        Set<LLVMInstruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (!work.isEmpty()) {
+            LLVMInstruction instr = work.pop();
+            if (!dead.add(instr))
+                continue;
+            for (LLVMValue operand : instr.operands) {
+                LLVMInstruction def = defs.get(operand);
+                if (def != null && !def.hasSideEffects() && uses.merge(operand, -1, Integer::sum) == 0)
+                    work.push(def);
+            }
+        }
+
+        if (!dead.isEmpty())
+            for (LLVMBlock block : function.blocks)
+                block.instructions.removeIf(dead::contains);
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.*;
+
+/* dominator tree and dominance frontiers of a function, computed with the iterative algorithm of
+   Cooper, Harvey and Kennedy ("A Simple, Fast Dominance Algorithm") over the reachable blocks */
+public class DominatorTree {
+    final List<LLVMBlock> order;                        // reachable blocks in reverse postorder, entry first
+    final Map<LLVMBlock, List<LLVMBlock>> predecessors;
+    final Map<LLVMBlock, LLVMBlock> idom;
+    final Map<LLVMBlock, List<LLVMBlock>> children;
+    private final Map<LLVMBlock, Integer> rpoIndex;
+    private Map<LLVMBlock, Set<LLVMBlock>> frontier;
+
+    DominatorTree(LLVMFunction function) {
+        this.order = reversePostorder(function.getEntry());
+        this.rpoIndex = new HashMap<>();
+        for (int i = 0; i < this.order.size(); i++)
+            this.rpoIndex.put(this.order.get(i), i);
+
+        this.predecessors = new LinkedHashMap<>();
+        for (LLVMBlock block : this.order)
+            this.predecessors.put(block, new ArrayList<>());
+        for (LLVMBlock block : this.order)
+            for (LLVMBlock succ : block.getSuccessors())
+                if (!this.predecessors.get(succ).contains(block))
+                    this.predecessors.get(succ).add(block);
+
+        this.idom = new HashMap<>();
+        LLVMBlock entry = this.order.get(0);
+        this.idom.put(entry, entry);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < this.order.size(); i++) {
+                LLVMBlock block = this.order.get(i), newIdom = null;
+                for (LLVMBlock pred : this.predecessors.get(block)) {
+                    if (!this.idom.containsKey(pred))
+                        continue;
+                    newIdom = newIdom == null ? pred : this.intersect(pred, newIdom);
+                }
+                if (newIdom != this.idom.get(block)) {
+                    this.idom.put(block, newIdom);
+                    changed = true;
+                }
+            }
+        }
+
+        this.children = new LinkedHashMap<>();
+        for (LLVMBlock block : this.order)
+            this.children.put(block, new ArrayList<>());
+        for (int i = 1; i < this.order.size(); i++)
+            this.children.get(this.idom.get(this.order.get(i))).add(this.order.get(i));
+    }
+
+    private LLVMBlock intersect(LLVMBlock a, LLVMBlock b) {
+        while (a != b) {
+            while (this.rpoIndex.get(a) > this.rpoIndex.get(b))
+                a = this.idom.get(a);
+            while (this.rpoIndex.get(b) > this.rpoIndex.get(a))
+                b = this.idom.get(b);
+        }
+        return a;
+    }
+
+    /* iterative depth first search, generated functions can get too deep for recursion */
+    private static List<LLVMBlock> reversePostorder(LLVMBlock entry) {
+        List<LLVMBlock> postorder = new ArrayList<>();
+        Set<LLVMBlock> visited = new HashSet<>();
+        Deque<LLVMBlock> blocks = new ArrayDeque<>();
+        Deque<Iterator<LLVMBlock>> successors = new ArrayDeque<>();
+
+        visited.add(entry);
+        blocks.push(entry);
+        successors.push(entry.getSuccessors().iterator());
+        while (!blocks.isEmpty()) {
+            if (successors.peek().hasNext()) {
+                LLVMBlock next = successors.peek().next();
+                if (visited.add(next)) {
+                    blocks.push(next);
+                    successors.push(next.getSuccessors().iterator());
+                }
+            } else {
+                postorder.add(blocks.pop());
+                successors.pop();
+            }
+        }
+        Collections.reverse(postorder);
+        return postorder;
+    }
+
+    public boolean isReachable(LLVMBlock block) {
+        return this.rpoIndex.containsKey(block);
+    }
+
+    /**
+     * Whether every path from the entry to b goes through a.
+     */
+    public boolean dominates(LLVMBlock a, LLVMBlock b) {
+        while (true) {
+            if (a == b)
+                return true;
+            LLVMBlock up = this.idom.get(b);
+            if (up == null || up == b)
+                return false;
+            b = up;
+        }
+    }
+
+    /**
+     * Dominance frontier of each reachable block, computed on first use.
+     */
+    public Set<LLVMBlock> getFrontier(LLVMBlock block) {
+        if (this.frontier == null) {
+            this.frontier = new HashMap<>();
+            for (LLVMBlock b : this.order)
+                this.frontier.put(b, new LinkedHashSet<>());
+            for (LLVMBlock b : this.order) {
+                List<LLVMBlock> preds = this.predecessors.get(b);
+                if (preds.size() < 2)
+                    continue;
+                for (LLVMBlock runner : preds) {
+                    while (runner != this.idom.get(b)) {
+                        this.frontier.get(runner).add(b);
+                        runner = this.idom.get(runner);
+                    }
+                }
+            }
+        }
+        return this.frontier.get(block);
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.*;
+
+/* give objects and arrays that never leave the function they are allocated in a home on the stack instead of
+   @calloc (or the heap of --gc). A pointer escapes when it (or a pointer derived from it by bitcast / getelementptr) is passed to a
+   call, returned, stored somewhere, or merged in a phi; loading from and storing into it is what it is for.
+   A non escaping allocation of constant size
+
+        - is scalar replaced when every access is a load or store of a single type at a constant offset: each
+          offset gets an alloca of its own, zeroed where the allocation was, and mem2reg takes it from there
+        - lives in an alloca of the entry block otherwise (zeroed where the allocation was, so a new in a loop
+          still starts out clean every time; nothing can still point to the previous one, it did not escape)
+
+   anything else, or anything larger than MAX_STACK_BYTES, stays on the heap; the garbage collector scans the stack,
+   so heap objects referenced from moved ones stay alive. Runs after mem2reg, before that
+   every object goes through the stack slot of a local and so looks like it escapes */
+public class EscapeAnalysis {
+    static final int MAX_STACK_BYTES = 1024;
+
+    private final LLVMFunction function;
+    private final Map<LLVMValue, List<LLVMInstruction>> users;
+    private final List<LLVMInstruction> allocas;        // new allocas, they go to the entry block at the end
+    private final Map<String, int[]> structOffsets;     // records of form: (struct type, byte offset of each element)
+    private int stackBytes;
+
+    private EscapeAnalysis(LLVMFunction function, Map<String, int[]> structOffsets) {
+        this.function = function;
+        this.structOffsets = structOffsets;
+        this.users = new HashMap<>();
+        this.allocas = new ArrayList<>();
+        for (LLVMBlock block : function.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                for (LLVMValue operand : instr.operands)
+                    this.users.computeIfAbsent(operand, k -> new ArrayList<>()).add(instr);
+    }
+
+    /**
+     * Move the non escaping allocations of function off the heap, return whether new allocas were added.
+     */
+    public static boolean run(LLVMFunction function, Map<String, int[]> structOffsets) {
+        EscapeAnalysis analysis = new EscapeAnalysis(function, structOffsets);
+        Map<LLVMInstruction, LLVMBlock> allocations = new LinkedHashMap<>();
+        for (LLVMBlock block : function.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                if (allocationSize(instr) > 0)
+                    allocations.put(instr, block);
+
+        for (Map.Entry<LLVMInstruction, LLVMBlock> entry : allocations.entrySet()) {
+            LLVMBlock block = entry.getValue();
+            analysis.moveToStack(block, block.instructions.indexOf(entry.getKey()), allocationSize(entry.getKey()));
+        }
+        function.getEntry().instructions.addAll(0, analysis.allocas);
+        return !analysis.allocas.isEmpty();
+    }
+
+    /* bytes taken by an allocation of constant size (see HeapAllocation), 0 for anything else */
+    private static int allocationSize(LLVMInstruction instr) {
+        long bytes = HeapAllocation.constantSize(instr);
+        return bytes <= 0 || bytes > MAX_STACK_BYTES ? 0 : (int) bytes;
+    }
+
+    private static int sizeOf(String type) {
+        switch (type) {
+            case "i1":
+            case "i8":
+                return 1;
+            case "i32":
+                return 4;
+            default:
+                return type.endsWith("*") ? ClassData.pointerSize : -1;
+        }
+    }
+
+    private void moveToStack(LLVMBlock block, int at, int size) {
+        LLVMInstruction alloc = block.instructions.get(at);
+        Map<LLVMValue, String> derived = new HashMap<>();    // pointers into the allocation, with where they point
+        Set<LLVMInstruction> pointerMath = new HashSet<>();  // the bitcasts and getelementptrs computing them
+        List<LLVMInstruction> accesses = new ArrayList<>();
+        Deque<LLVMValue> work = new ArrayDeque<>();
+        derived.put(alloc.result, "@0");
+        work.push(alloc.result);
+
+        while (!work.isEmpty()) {
+            LLVMValue pointer = work.pop();
+            for (LLVMInstruction user : this.users.getOrDefault(pointer, Collections.emptyList())) {
+                switch (user.opcode) {
+                    case BITCAST:
+                    case GETELEMENTPTR:
+                        if (user.operands.indexOf(pointer) != 0)
+                            return;
+                        pointerMath.add(user);
+                        if (!derived.containsKey(user.result)) {
+                            derived.put(user.result, user.opcode == LLVMInstruction.Opcode.BITCAST
+                                    ? derived.get(pointer) : this.offset(derived.get(pointer), user));
+                            work.push(user.result);
+                        }
+                        break;
+                    case LOAD:
+                        accesses.add(user);
+                        break;
+                    case STORE:
+                        if (user.operands.get(0).equals(pointer))
+                            return;             // the pointer itself is written to memory
+                        accesses.add(user);
+                        break;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        /* every access has to hit a known offset with one type for scalar replacement */
+        Map<String, String> fields = new LinkedHashMap<>();    // records of form: (offset, llvm type)
+        boolean scalar = true;
+        for (LLVMInstruction access : accesses) {
+            boolean isLoad = access.opcode == LLVMInstruction.Opcode.LOAD;
+            String where = derived.get(access.operands.get(isLoad ? 0 : 1));
+            String type = isLoad ? access.result.getType() : access.operands.get(0).getType();
+            if (where == null || (fields.containsKey(where) && !fields.get(where).equals(type))) {
+                scalar = false;
+                break;
+            }
+            fields.put(where, type);
+        }
+
+        if (!scalar && this.stackBytes + size > MAX_STACK_BYTES)
+            return;
+
+        List<LLVMInstruction> init = new ArrayList<>();
+        String name = alloc.result.getName();
+        if (scalar) {
+            Map<String, LLVMValue> slots = new HashMap<>();
+            int n = 0;
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                LLVMValue slot = LLVMValue.register(field.getValue() + "*", name + ".f" + n++);
+                this.allocas.add(LLVMInstruction.alloca(slot, field.getValue()));
+                init.add(LLVMInstruction.store(Mem2Reg.zero(field.getValue()), slot));
+                slots.put(field.getKey(), slot);
+            }
+            for (LLVMInstruction access : accesses) {
+                int address = access.opcode == LLVMInstruction.Opcode.LOAD ? 0 : 1;
+                access.operands.set(address, slots.get(derived.get(access.operands.get(address))));
+            }
+            /* nothing uses the pointer arithmetic any more, it goes with the call: the module has to stay valid
+               whether dce runs or not */
+            block.instructions.remove(at);
+            block.instructions.addAll(at, init);
+            for (LLVMBlock b : this.function.blocks)
+                b.instructions.removeAll(pointerMath);
+            if (!init.isEmpty())
+                init.get(0).withComment(name + " does not escape, its fields live in registers");
+        } else {
+            /* 8 byte elements keep fields of any type aligned */
+            String type = "[" + (size + 7) / 8 + " x i64]";
+            LLVMValue stack = LLVMValue.register(type + "*", name + ".stack");
+            this.allocas.add(LLVMInstruction.alloca(stack, type));
+            block.instructions.set(at, LLVMInstruction.store(LLVMValue.constant(type, "zeroinitializer"), stack)
+                    .withComment(name + " does not escape, allocate it on the stack"));
+            block.instructions.add(at + 1, LLVMInstruction.bitcast(alloc.result, stack));
+            this.stackBytes += size;
+        }
+    }
+
+    /* where a getelementptr points, "@<bytes>" from the start of the allocation, null if that is not known at
+       compile time. Fields reached through a class struct are keyed by their byte offset as well: a method
+       inherited from the parent reaches a field through the parent's struct, one of the subclass through its own,
+       and both have to land on the same slot */
+    private String offset(String base, LLVMInstruction gep) {
+        if (base == null)
+            return null;
+        for (int i = 1; i < gep.operands.size(); i++)
+            if (!gep.operands.get(i).isConstant())
+                return null;
+
+        if (gep.operands.size() == 2 && base.startsWith("@") && sizeOf(gep.type) > 0)
+            return "@" + (Integer.parseInt(base.substring(1)) + gep.operands.get(1).intValue() * sizeOf(gep.type));
+        int[] offsets = this.structOffsets.get(gep.type);
+        if (gep.operands.size() == 3 && base.equals("@0") && offsets != null && gep.operands.get(1).intValue() == 0
+                && gep.operands.get(2).intValue() < offsets.length)
+            return "@" + offsets[gep.operands.get(2).intValue()];
+        return null;
+    }
+}
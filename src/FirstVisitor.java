@@ -1,39 +1,81 @@
 import java.util.*;
-import javafx.util.Pair;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
-@interface CaseOfMessageSendOnly{};
+/* first pass over the parse tree, in two walks: the first collects the fields and methods of every class, the second
+   goes through the method bodies and records the class of the receiver of each message send in receiverTypes.
+   Every class is declared before any body is looked at, so a send may call a method of a class declared further down */
 public class FirstVisitor extends JavaParserBaseVisitor<String>{
 
     protected Map <String, ClassData> classes;
-    protected Map <String, String> vars;
-    protected LinkedList<String> messageQueue;
+    protected Map <String, String> vars;                // type of each name in scope: fields, then parameters and locals
+    protected ParseTreeProperty<String> receiverTypes;   // class of the receiver, for each MessageSend node
+    protected Types types;                              // type ids of this compilation
     private Integer nextVar, nextMethod;
     private String className;
+    private ClassData data;                             // class whose fields are being declared, null for locals
+    private boolean bodies;                             // second walk, over the method bodies
 
     public FirstVisitor(){
         this.classes = new LinkedHashMap<>();
-        this.messageQueue = new LinkedList<>();
+        this.receiverTypes = new ParseTreeProperty<>();
+        this.types = new Types();
         this.vars = new LinkedHashMap<>();
         this.nextVar = ClassData.pointerSize;
         this.nextMethod = 0;
     }
 
-    @CaseOfMessageSendOnly
+    /* Goal: f0 -> MainClass() f1 -> ( TypeDeclaration() )*
+       classes are entered in declaration order, then declared parents first (see ClassData.topologicalOrder),
+       so a subclass starts from the complete tables of its parent wherever the two appear in the file */
+    @Override
+    public String visitGoal(JavaParser.GoalContext node){
+        Map<String, JavaParser.TypeDeclarationContext> declarations = new HashMap<>();
+        this.bodies = false;
+        node.mainClass().accept(this);
+        for(JavaParser.TypeDeclarationContext type : node.typeDeclaration()){
+            String id, parent = null;
+            if(type.classDeclaration() != null)
+                id = type.classDeclaration().identifier().accept(this);
+            else{
+                id = type.classExtendsDeclaration().identifier(0).accept(this);
+                parent = type.classExtendsDeclaration().identifier(1).accept(this);
+            }
+            this.classes.put(id, new ClassData(parent));
+            declarations.put(id, type);
+        }
+        for(String id : ClassData.topologicalOrder(this.classes)){
+            if(declarations.containsKey(id))
+                declarations.get(id).accept(this);
+        }
+
+        this.bodies = true;
+        node.mainClass().accept(this);
+        for(JavaParser.TypeDeclarationContext type : node.typeDeclaration())
+            type.accept(this);
+        return null;
+    }
+
     /*  MainClass
         class f1 -> Identifier(){
             public static void main(String[] f11 -> Identifier()){
                 f14 -> ( VarDeclaration() )*
                 f15 -> ( Statement() )*
         } */
-    public String visit(JavaParser.MainClassContext node, ClassData data){
-
+    @Override
+    public String visitMainClass(JavaParser.MainClassContext node){
         this.className = node.identifier(0).accept(this);
-        ClassData cd = new ClassData(null);
-        MethodData md = new MethodData(this.className, "void", 0, null);
-        node.varDeclaration(0).accept(this);
-        node.statement(0).accept(this); // info about MessageSend need to be collected on this pass
+        if(!this.bodies){
+            this.classes.put(this.className, new ClassData(null));
+            return null;
+        }
 
-        this.classes.put(this.className, cd);
+        /* info about MessageSend needs to be collected on this pass */
+        this.vars.clear();
+        this.data = null;
+        for(JavaParser.VarDeclarationContext var : node.varDeclaration())
+            var.accept(this);
+        for(JavaParser.StatementContext statement : node.statement())
+            statement.accept(this);
         return null;
     }
 
@@ -43,24 +85,23 @@ public class FirstVisitor extends JavaParserBaseVisitor<String>{
         f4 -> ( MethodDeclaration() )*
     }
     */
-    public String visit(JavaParser.ClassDeclarationContext node, ClassData data){
+    @Override
+    public String visitClassDeclaration(JavaParser.ClassDeclarationContext node){
         String id = node.identifier().accept(this);
-        ClassData cd = new ClassData(null);
         this.className = id;
+        if(this.bodies)
+            return this.visitBodies(node.methodDeclaration());
+
+        ClassData cd = this.classes.get(id);
 
         /* initialize offsets */
         this.nextVar = ClassData.pointerSize;
         this.nextMethod = 0;
 
-        /* pass ClassData to each field */
-        node.varDeclaration(0).accept(this);
+        this.declare(cd, node.varDeclaration(), node.methodDeclaration());
 
-        /* pass ClassData to each member method */
-        node.methodDeclaration(0).accept(this);
-
-        /* enter class data collected in the symbol table */
-        cd.setSize();
-        this.classes.put(id, cd);
+        /* the running offset is where the fields end */
+        cd.size = this.nextVar;
         return null;
     }
 
@@ -70,26 +111,56 @@ public class FirstVisitor extends JavaParserBaseVisitor<String>{
             f6 -> ( MethodDeclaration() )*
         }
     */
-    public String visit(JavaParser.ClassExtendsDeclarationContext node, ClassData data){
-        String id = node.identifier(0).accept(this), parent = node.identifier(0).accept(this);
+    @Override
+    public String visitClassExtendsDeclaration(JavaParser.ClassExtendsDeclarationContext node){
+        String id = node.identifier(0).accept(this);
         this.className = id;
-
-        /* Pass a meta data object down to the declarations sections, derived class inherits all fields and methods */
-        ClassData cd = new ClassData(parent), cdParent = this.classes.get(parent);
-        cd.vars.putAll(cdParent.vars);
-        cd.methods.putAll(cdParent.methods);
-        this.nextVar = cdParent.getOffsetOfNextVar();
+        if(this.bodies)
+            return this.visitBodies(node.methodDeclaration());
+
+        /* derived class inherits all fields and methods; fields are copied array by array,
+           and the new ones go where those of the parent end. The copies are no bigger than the struct type and
+           vTable every class gets with all its inherited fields and methods anyway */
+        ClassData cd = this.classes.get(id), cdParent = this.classes.get(cd.parentName);
+        cd.vars = new SymbolTable(cdParent.vars);
+        cd.methods = new LinkedHashMap<>(cdParent.methods);
+        this.nextVar = cdParent.size;
         this.nextMethod = cd.methods.size();
 
-        /* pass ClassData to each field */
-        node.varDeclaration(0).accept(this);
+        this.declare(cd, node.varDeclaration(), node.methodDeclaration());
+
+        cd.size = this.nextVar;
+        return null;
+    }
 
-        /* pass ClassData to each member method */
-        node.methodDeclaration(0).accept(this);
+    /* enter the fields and the method signatures of a class into cd */
+    private void declare(ClassData cd, List<JavaParser.VarDeclarationContext> fields, List<JavaParser.MethodDeclarationContext> methods){
+        this.data = cd;
+        for(JavaParser.VarDeclarationContext field : fields)
+            field.accept(this);
+        this.data = null;
+
+        for(JavaParser.MethodDeclarationContext method : methods){
+            String type = method.type().accept(this);
+            String id = method.identifier().accept(this);
+
+            /* get argument types, if they exist */
+            SymbolTable args = null;
+            if(method.formalParameterList() != null)
+                args = MyUtils.getParams(this.types, method.formalParameterList().accept(this).split(","));
+
+            /* if method already exists, override it by defining this class as the last to implement it
+               other fields like return type or arguments do not need to be update it, mini-java does not support parametric polymorphism*/
+            if(cd.methods.containsKey(id))
+                cd.methods.put(id, new MethodData(this.className, type, cd.methods.get(id).offset, args));
+            else
+                cd.methods.put(id, new MethodData(this.className, type, this.nextMethod++, args));
+        }
+    }
 
-        /* enter class data collected in the symbol table */
-        cd.setSize();
-        this.classes.put(id, cd);
+    private String visitBodies(List<JavaParser.MethodDeclarationContext> methods){
+        for(JavaParser.MethodDeclarationContext method : methods)
+            method.accept(this);
         return null;
     }
 
@@ -97,20 +168,20 @@ public class FirstVisitor extends JavaParserBaseVisitor<String>{
         f0 -> Type()
         f1 -> Identifier()
     bind each variable name/id to a type*/
-    public String visit(JavaParser.VarDeclarationContext node, ClassData data){
+    @Override
+    public String visitVarDeclaration(JavaParser.VarDeclarationContext node){
         String type = node.type().accept(this);
         String id = node.identifier().accept(this);
 
-        this.vars.put(id, type);
-
-        /* store the variable and calculate the exact memory address for the next one to be stored */
-        Pair<String, Integer> pair = new Pair<String, Integer>(type, this.nextVar);
-
-        /* if it is not about a variable declared in a method, but in a class, update lookup Table */
-        if(data != null){
-            data.vars.put(id, pair);
-            this.nextVar += ClassData.getSize(type).getKey();
+        /* if it is not about a variable declared in a method, but in a class, update lookup Table
+           and calculate the exact memory address for the next one to be stored */
+        if(this.data != null){
+            int typeId = this.types.id(type);
+            this.data.vars.put(id, typeId, this.nextVar);
+            this.nextVar += Types.size(typeId);
         }
+        else
+            this.vars.put(id, type);
         return null;
     }
 
@@ -120,126 +191,111 @@ public class FirstVisitor extends JavaParserBaseVisitor<String>{
             f8 -> ( Statement() )*
             return f10 -> Expression();
         }
-     */
-    public String visit(JavaParser.MethodDeclarationContext node, ClassData data){
-        String type = node.type().accept(this);
-        String id = node.identifier().accept(this);
-
-        /* get argument types, if they exist */
-        ArrayList<Pair<String, String>> args = null;
-        if (!node.formalParameterList().isEmpty())
-            args = MyUtils.getParams(node.formalParameterList().accept(this).split(","));
+    only visited on the second walk: the fields of the class, then parameters and locals are in scope */
+    @Override
+    public String visitMethodDeclaration(JavaParser.MethodDeclarationContext node){
+        SymbolTable fields = this.classes.get(this.className).vars;
+        this.vars.clear();
+        for(int i = 0; i < fields.size(); i++)
+            this.vars.put(fields.name(i), this.types.name(fields.type(i)));
+        if(node.formalParameterList() != null)
+            node.formalParameterList().accept(this);
+        for(JavaParser.VarDeclarationContext var : node.varDeclaration())
+            var.accept(this);
 
         /* visit both all statement nodes and the return statement expression in order to detect any messages send*/
-        node.statement(0).accept(this);
+        for(JavaParser.StatementContext statement : node.statement())
+            statement.accept(this);
         node.expression().accept(this);
-
-
-        /* if method already exists, override it by defining this class as the last to implement it
-           other fields like return type or arguments do not need to be update it, mini-java does not support parametric polymorphism*/
-        if(data.methods.containsKey(id))
-            data.methods.put(id, new MethodData(this.className, type, data.methods.get(id).offset, args));
-        else
-            data.methods.put(id, new MethodData(this.className, type, this.nextMethod++, args));
         return null;
     }
 
     /* FormalParameterList: f0 -> FormalParameter() f1 -> FormalParameterTail() Get all parameter types a String*/
-    public String visit(JavaParser.FormalParameterListContext node, ClassData data){
+    @Override
+    public String visitFormalParameterList(JavaParser.FormalParameterListContext node){
         String head = node.formalParameter().accept(this), tail = node.formalParameterTail().accept(this);
         return head + tail;
     }
 
-    /* FormalParameter f0 -> Type() f1 -> Identifier() Returns just the parameter type as a String*/
-    public String visit(JavaParser.FormalParameterContext node, ClassData data){
+    /* FormalParameter f0 -> Type() f1 -> Identifier() Returns the parameter as type:name */
+    @Override
+    public String visitFormalParameter(JavaParser.FormalParameterContext node){
         String type = node.type().accept(this), id = node.identifier().accept(this);
         this.vars.put(id, type);
         return type + ":" + id;
     }
 
     /* FormalParameterTail f0 -> ( FormalParameterTerm)* */
-    public String visit(JavaParser.FormalParameterTailContext node, ClassData data){
-        String retval = "";
-        for (int i = 0; i < node.formalParameterTerm().size(); i++)
-            retval += node.formalParameterTerm().get(i).accept(this);
-        return retval;
+    @Override
+    public String visitFormalParameterTail(JavaParser.FormalParameterTailContext node){
+        StringBuilder retval = new StringBuilder();
+        for(JavaParser.FormalParameterTermContext term : node.formalParameterTerm())
+            retval.append(term.accept(this));
+        return retval.toString();
     }
 
     /* FormalParameterTerm: ,f1 -> FormalParameter */
-    public String visit(JavaParser.FormalParameterTermContext node, ClassData data){
+    @Override
+    public String visitFormalParameterTerm(JavaParser.FormalParameterTermContext node){
         return "," + node.formalParameter().accept(this);
     }
 
     /* Type: f0 -> ArrayType() | BooleanType() | IntegerType() | Identifier() */
-    public String visit(JavaParser.TypeContext node, ClassData data){
-        int which = node.getRuleIndex();
-        if (which == 0)
+    @Override
+    public String visitType(JavaParser.TypeContext node){
+        if(node.arrayType() != null)
             return "array";
-        else if(which == 1)
+        else if(node.booleanType() != null)
             return "boolean";
-        else if(which == 2)
+        else if(node.integerType() != null)
             return "integer";
         else
-            return node.identifier().accept(this);  // identifier
+            return node.identifier().accept(this);
     }
 
     /* Identifier f0: return the id as a string*/
-    public String visit(JavaParser.IdentifierContext node, ClassData data){
-        return node.IDENTIFIER().toString();
+    @Override
+    public String visitIdentifier(JavaParser.IdentifierContext node){
+        return node.IDENTIFIER().getText();
     }
 
-    @CaseOfMessageSendOnly
-    /*  AssignmentStatement:   f0 -> Identifier() = f2 -> Expression(); */
-    public String visit(JavaParser.AssignmentStatementContext node, ClassData data){
-        String left = node.identifier().accept(this), right = node.expression().accept(this);
-
-        /* in case of an assignment, a parent class reference might now point to a child class object,
-           so adjust the variables table to reflect that, in order for the right method to be executed in case of a message send*/
-        if(right != null)
-            this.vars.put(left, right);
-
-        return null;
-    }
-
-    @CaseOfMessageSendOnly
     /*MessageSend
-     * f0 -> PrimaryExpression().f2 -> Identifier()(f4 -> ( ExpressionList() )?) */
-    public String visit(JavaParser.MessageSendContext node, ClassData data){
+     * f0 -> PrimaryExpression().f2 -> Identifier()(f4 -> ( ExpressionList() )?)
+     the receiver's static type picks the method, dispatch through the vTable takes care of subclasses */
+    @Override
+    public String visitMessageSend(JavaParser.MessageSendContext node){
         String className = node.primaryExpression().accept(this);
-        this.messageQueue.addLast(className);
-        node.expressionList().accept(this); // visit ExpressionList to record MessageSends in there as well
-        return className;           // return className because this node might be an inner/nested MessageSend
+        this.receiverTypes.put(node, className);
+        if(node.expressionList() != null)
+            node.expressionList().accept(this); // visit ExpressionList to record MessageSends in there as well
+
+        /* the type of the send is what the method returns, this node might be the receiver of another send */
+        ClassData cd = className == null ? null : this.classes.get(className);
+        MethodData method = cd == null ? null : cd.methods.get(node.identifier().accept(this));
+        return method == null ? null : method.returnType;
     }
 
-    @CaseOfMessageSendOnly
     /*PrimaryExpression
     * f0 -> IntegerLiteral() | TrueLiteral() | FalseLiteral() | Identifier()
     | ThisExpression() | ArrayAllocationExpression() | AllocationExpression() | BracketExpression() */
-    public String visit(JavaParser.PrimaryExpressionContext node, ClassData data){
-        int childNode = node.integerLiteral().getRuleIndex();
-
+    @Override
+    public String visitPrimaryExpression(JavaParser.PrimaryExpressionContext node){
         // in case of an identifier, return the corresponding data type
-        if(childNode == 3)
-            return this.vars.get(node.integerLiteral().accept(this));
+        if(node.identifier() != null)
+            return this.vars.get(node.identifier().accept(this));
             // in case of a 'this' pointer, the name of this class is the appropriate data type
-        else if(childNode == 4)
+        else if(node.thisExpression() != null)
             return this.className;
             // in case of an allocation or a bracket expression, actual data type will be passed up
-        else if(childNode > 5)
-            return node.integerLiteral().accept(this);
+        else if(node.allocationExpression() != null)
+            return node.allocationExpression().identifier().accept(this);
+        else if(node.bracketExpression() != null)
+            return node.bracketExpression().expression().accept(this);
+        else if(node.arrayAllocationExpression() != null){
+            node.arrayAllocationExpression().expression().accept(this);
+            return "array";
+        }
         else
             return null;
     }
-
-    @CaseOfMessageSendOnly
-    /*AllocationExpresion:  new f1 -> Identifier()() */
-    public String visit(JavaParser.AllocationExpressionContext node, ClassData data){
-        return node.identifier().accept(this);  //return class name of new instance
-    }
-
-    @CaseOfMessageSendOnly
-    /*BracketExpression:    ( f1 -> Expression() )*/
-    public String visit(JavaParser.BracketExpressionContext node, ClassData data){
-        return node.expression().accept(this);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* with --gc, objects and arrays come from the heap of runtime/minijava_rt.c: @mj_new(bytes, gc map) returns
+   zeroed memory following a one word header pointing to the gc map of the object (its size and where its
+   pointers are, see MyUtils.declareGcMaps). This pass turns calls of constant size into the fast path of the
+   thread-local bump allocator:
+
+        %o.top = load i8*, i8** @mj_top
+        %o.end = getelementptr i8, i8* %o.top, i32 <header + size, rounded up to 8>
+        %o.limit = load i8*, i8** @mj_limit
+        %o.fits = icmp ule i8* %o.end, %o.limit
+        br i1 %o.fits, label %alloc_N, label %collect_N
+    alloc_N:        bump @mj_top, store the gc map in the header, the object starts right after it
+    collect_N:      the nursery block is full, @mj_new gets a new one (collecting garbage if the heap is full)
+    allocated_N:    %o = phi i8* [...]
+
+   Run last, other passes recognise allocations by the call */
+public class HeapAllocation {
+    static final int HEADER_SIZE = 8;
+    static final int MAX_INLINE_SIZE = 64 * 1024;     // larger objects get a block of their own, always in @mj_new
+
+    /**
+     * Whether instr allocates memory: @calloc(count, size), or @mj_new(bytes, gc map) with --gc.
+     */
+    public static boolean isAllocation(LLVMInstruction instr) {
+        if (instr.opcode != LLVMInstruction.Opcode.CALL)
+            return false;
+        String callee = instr.operands.get(0).getName();
+        return "@calloc".equals(callee) || "@mj_new".equals(callee);
+    }
+
+    /**
+     * Bytes an allocation asks for, or -1 if not known at compile time.
+     */
+    public static long constantSize(LLVMInstruction instr) {
+        if (!isAllocation(instr))
+            return -1;
+        if ("@mj_new".equals(instr.operands.get(0).getName()))
+            return instr.operands.get(1).isConstant() ? instr.operands.get(1).intValue() : -1;
+
+        LLVMValue count = instr.operands.get(1), size = instr.operands.get(2);
+        return count.isConstant() && size.isConstant() ? (long) count.intValue() * size.intValue() : -1;
+    }
+
+    public static void run(LLVMFunction function) {
+        List<LLVMInstruction> calls = new ArrayList<>();
+        for (LLVMBlock block : function.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                if (isAllocation(instr) && "@mj_new".equals(instr.operands.get(0).getName())
+                        && constantSize(instr) >= 0 && constantSize(instr) <= MAX_INLINE_SIZE)
+                    calls.add(instr);
+
+        State state = new State();
+        for (LLVMInstruction call : calls)
+            lower(function, call, state.newLabel("new"));
+    }
+
+    private static void lower(LLVMFunction function, LLVMInstruction call, String[] labels) {
+        LLVMBlock block = null;
+        for (LLVMBlock b : function.blocks)
+            if (b.instructions.contains(call))
+                block = b;
+        int at = block.instructions.indexOf(call);
+        LLVMBlock allocated = function.split(block, at + 1, labels[2]);
+        block.instructions.remove(at);
+
+        String name = call.result.getName();
+        int total = HEADER_SIZE + (call.operands.get(1).intValue() + 7) / 8 * 8;
+        LLVMValue gcMap = call.operands.get(2), top = LLVMValue.global("i8**", "@mj_top"), limit = LLVMValue.global("i8**", "@mj_limit");
+        LLVMValue current = LLVMValue.register("i8*", name + ".top"), end = LLVMValue.register("i8*", name + ".end"),
+                bound = LLVMValue.register("i8*", name + ".limit"), fits = LLVMValue.register("i1", name + ".fits"),
+                header = LLVMValue.register("i8**", name + ".header"), fast = LLVMValue.register("i8*", name + ".fast"),
+                slow = LLVMValue.register("i8*", name + ".slow");
+
+        LLVMBlock alloc = new LLVMBlock(labels[0]), collect = new LLVMBlock(labels[1]);
+        block.add(LLVMInstruction.load(current, top).withComment("bump allocate " + name + ", " + total + " bytes with its header"));
+        block.add(LLVMInstruction.getElementPtr(end, "i8", current, LLVMValue.constant(total)));
+        block.add(LLVMInstruction.load(bound, limit));
+        block.add(LLVMInstruction.binary(LLVMInstruction.Opcode.ICMP_ULE, fits, end, bound));
+        block.add(LLVMInstruction.br(fits, alloc, collect));
+
+        alloc.add(LLVMInstruction.store(end, top));
+        alloc.add(LLVMInstruction.bitcast(header, current));
+        alloc.add(LLVMInstruction.store(gcMap, header));
+        alloc.add(LLVMInstruction.getElementPtr(fast, "i8", current, LLVMValue.constant(HEADER_SIZE)));
+        alloc.add(LLVMInstruction.br(allocated));
+
+        collect.add(LLVMInstruction.call(slow, "i8*", call.operands.get(0), Arrays.asList(call.operands.get(1), gcMap)));
+        collect.add(LLVMInstruction.br(allocated));
+
+        LLVMInstruction phi = LLVMInstruction.phi(call.result);
+        phi.addIncoming(fast, alloc);
+        phi.addIncoming(slow, collect);
+        allocated.instructions.add(0, phi);
+        function.blocks.addAll(function.blocks.indexOf(allocated), Arrays.asList(alloc, collect));
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Writer the module gets printed into: text is copied into one reusable chunk of chars, and a full chunk is turned
+   into bytes in one go (a plain copy while it is ascii, which ir text practically always is, utf-8 otherwise) and
+   handed to a file channel, stdout or an in-memory sink in a single write. Nothing is allocated per fragment
+   and i/o errors reach the caller */
+public class IROutput extends Writer {
+    private static final int CHUNK = 1 << 16;
+
+    private final WritableByteChannel channel;      // null for an in-memory sink
+    private final boolean ownsChannel;
+    private final ByteArrayOutputStream memory;
+    private final char[] chars;
+    private int length;
+    private final ByteBuffer bytes;
+    private CharsetEncoder encoder;                 // created on the first non ascii char
+    private boolean closed;
+
+    private IROutput(WritableByteChannel channel, boolean ownsChannel, ByteArrayOutputStream memory) {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.memory = memory;
+        this.chars = new char[CHUNK];
+        this.bytes = ByteBuffer.allocate(CHUNK * 3);    // a char never takes more than 3 bytes of utf-8
+    }
+
+    /**
+     * Write to a file, replacing its contents.
+     */
+    public static IROutput toFile(Path file) throws IOException {
+        return new IROutput(FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING), true, null);
+    }
+
+    /**
+     * Write to standard output, which stays open when this is closed.
+     */
+    public static IROutput toStdout() {
+        return new IROutput(Channels.newChannel(new FileOutputStream(FileDescriptor.out)), false, null);
+    }
+
+    /**
+     * Keep the bytes in memory, see toByteArray.
+     */
+    public static IROutput inMemory() {
+        return new IROutput(null, false, new ByteArrayOutputStream());
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (this.length == CHUNK)
+            this.drain();
+        this.chars[this.length++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.length == CHUNK)
+                this.drain();
+            int n = Math.min(len, CHUNK - this.length);
+            System.arraycopy(cbuf, off, this.chars, this.length, n);
+            this.length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.length == CHUNK)
+                this.drain();
+            int n = Math.min(len, CHUNK - this.length);
+            str.getChars(off, off + n, this.chars, this.length);
+            this.length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /* encode the pending chars and pass them on */
+    private void drain() throws IOException {
+        if (this.closed)
+            throw new IOException("output already closed");
+
+        for (int i = 0; i < this.length; i++) {
+            char c = this.chars[i];
+            if (c < 0x80) {
+                this.bytes.put((byte) c);
+                continue;
+            }
+            if (this.encoder == null)
+                this.encoder = StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.encoder.reset();
+            this.encoder.encode(CharBuffer.wrap(this.chars, i, this.length - i), this.bytes, true);
+            this.encoder.flush(this.bytes);
+            break;
+        }
+        this.length = 0;
+
+        this.bytes.flip();
+        if (this.channel != null) {
+            while (this.bytes.hasRemaining())
+                this.channel.write(this.bytes);
+        } else
+            this.memory.write(this.bytes.array(), 0, this.bytes.limit());
+        this.bytes.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.length > 0)
+            this.drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        try {
+            this.flush();
+        } finally {
+            this.closed = true;
+            if (this.ownsChannel)
+                this.channel.close();
+        }
+    }
+
+    /**
+     * Everything written so far to an in-memory sink.
+     */
+    public byte[] toByteArray() throws IOException {
+        this.flush();
+        return this.memory.toByteArray();
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.*;
+
+/* replace direct calls (the only ones whose target is known, see ClassHierarchy) to small methods by a copy of
+   their body. The block holding the call is split in two: the part before it branches into the copy, every ret
+   of the copy branches to the part after it, where a phi gathers the returned values if there are several.
+   Labels of the copy come from a State of the caller ("inline_N" prefixes the callee's labels, "return_N" is
+   the block after the call) and its registers get the ".inline_N" suffix, parameters are replaced by the
+   arguments. Allocas of the copy move to the entry of the caller, so a call inside a loop cannot keep growing
+   the stack. Only calls present before the pass are inlined, so recursion cannot make it run away */
+public class Inliner {
+    public static final int DEFAULT_BUDGET = 12;    // instructions, enough for getters, setters and small helpers
+
+    private final Map<String, LLVMFunction> functions;
+    private final int budget;
+
+    Inliner(LLVMModule module, int budget) {
+        this.functions = new HashMap<>();
+        for (LLVMFunction function : module.functions)
+            this.functions.put(function.getName(), function);
+        this.budget = budget;
+    }
+
+    /**
+     * Inline small callees into every function of the module, return the functions that changed.
+     */
+    public static List<LLVMFunction> run(LLVMModule module, int budget) {
+        Inliner inliner = new Inliner(module, budget);
+        List<LLVMFunction> changed = new ArrayList<>();
+        for (LLVMFunction function : module.functions)
+            if (!function.isCached() && inliner.inlineCalls(function))
+                changed.add(function);
+        return changed;
+    }
+
+    private static int size(LLVMFunction function) {
+        int size = 0;
+        for (LLVMBlock block : function.blocks)
+            size += block.instructions.size();
+        return size;
+    }
+
+    /* the function a call goes to, if it is known and small enough to be copied into caller */
+    private LLVMFunction inlinable(LLVMFunction caller, LLVMInstruction instr) {
+        if (instr.opcode != LLVMInstruction.Opcode.CALL || instr.operands.get(0).isRegister())
+            return null;
+        LLVMFunction callee = this.functions.get(instr.operands.get(0).getName().substring(1));
+        if (callee == null || callee == caller || callee.isCached() || callee.params.size() != instr.operands.size() - 1)
+            return null;
+        return size(callee) <= this.budget ? callee : null;
+    }
+
+    private boolean inlineCalls(LLVMFunction caller) {
+        List<LLVMInstruction> sites = new ArrayList<>();
+        for (LLVMBlock block : caller.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                if (this.inlinable(caller, instr) != null)
+                    sites.add(instr);
+
+        State state = new State();
+        for (LLVMInstruction call : sites)
+            this.inline(caller, call, this.inlinable(caller, call), state.newLabel("inline"));
+        return !sites.isEmpty();
+    }
+
+    private static LLVMBlock blockOf(LLVMFunction function, LLVMInstruction instr) {
+        for (LLVMBlock block : function.blocks)
+            for (LLVMInstruction i : block.instructions)
+                if (i == instr)
+                    return block;
+        throw new IllegalStateException("call not found in " + function.getName());
+    }
+
+    private void inline(LLVMFunction caller, LLVMInstruction call, LLVMFunction callee, String[] labels) {
+        String prefix = labels[0], suffix = "." + labels[0];
+        LLVMBlock block = blockOf(caller, call);
+        int at = block.instructions.indexOf(call);
+
+        /* the part of the block after the call, successors now get control from there */
+        LLVMBlock after = caller.split(block, at + 1, labels[1]);
+        block.instructions.remove(at);
+
+        Map<LLVMValue, LLVMValue> values = new HashMap<>();
+        for (int i = 0; i < callee.params.size(); i++)
+            values.put(callee.params.get(i), call.operands.get(i + 1));
+        Map<LLVMBlock, LLVMBlock> blocks = new LinkedHashMap<>();
+        for (LLVMBlock b : callee.blocks)
+            blocks.put(b, new LLVMBlock(prefix + "." + b.getLabel()));
+
+        LLVMInstruction result = call.result == null ? null : LLVMInstruction.phi(call.result);
+        List<LLVMInstruction> allocas = new ArrayList<>();
+        for (Map.Entry<LLVMBlock, LLVMBlock> entry : blocks.entrySet()) {
+            LLVMBlock copy = entry.getValue();
+            for (LLVMInstruction instr : entry.getKey().instructions) {
+                LLVMInstruction clone = instr.copy();
+                if (clone.result != null)
+                    clone.result = rename(clone.result, suffix, values);
+                for (int i = 0; i < clone.operands.size(); i++)
+                    clone.operands.set(i, rename(clone.operands.get(i), suffix, values));
+                for (int i = 0; i < clone.targets.size(); i++)
+                    clone.targets.set(i, blocks.get(clone.targets.get(i)));
+
+                if (clone.opcode == LLVMInstruction.Opcode.RET) {
+                    if (result != null)
+                        result.addIncoming(clone.operands.get(0), copy);
+                    clone = LLVMInstruction.br(after);
+                } else if (clone.opcode == LLVMInstruction.Opcode.ALLOCA) {
+                    allocas.add(clone);
+                    continue;
+                }
+                copy.add(clone);
+            }
+        }
+
+        block.add(LLVMInstruction.br(blocks.get(callee.getEntry())).withComment("inlined call to " + callee.getName()));
+        caller.blocks.addAll(caller.blocks.indexOf(after), blocks.values());
+        caller.getEntry().instructions.addAll(0, allocas);
+
+        /* a single ret hands its value over directly, several meet in a phi */
+        if (result != null) {
+            if (result.operands.size() == 1)
+                caller.replaceAllUses(call.result, result.operands.get(0));
+            else
+                after.instructions.add(0, result);
+        }
+        caller.inlined.add(callee.getName());
+        caller.inlined.addAll(callee.inlined);
+        caller.sends.addAll(callee.sends);
+    }
+
+    /* parameters become the arguments, the rest of the callee's registers get a name of their own in the caller */
+    private static LLVMValue rename(LLVMValue value, String suffix, Map<LLVMValue, LLVMValue> values) {
+        if (!value.isRegister())
+            return value;
+        return values.computeIfAbsent(value, v -> LLVMValue.register(v.getType(), v.getName() + suffix));
+    }
+}
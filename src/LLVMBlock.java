@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* a labelled, straight-line sequence of instructions ending with a br or ret */
+public class LLVMBlock {
+    private final String label;
+    List<LLVMInstruction> instructions;
+
+    LLVMBlock(String label) {
+        this.label = label;
+        this.instructions = new ArrayList<>();
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void add(LLVMInstruction instr) {
+        this.instructions.add(instr);
+    }
+
+    /**
+     * Return the terminating br/ret, or null if the block is still open.
+     */
+    public LLVMInstruction getTerminator() {
+        if (this.instructions.isEmpty())
+            return null;
+        LLVMInstruction last = this.instructions.get(this.instructions.size() - 1);
+        return last.isTerminator() ? last : null;
+    }
+
+    /**
+     * Blocks control may flow to when leaving this one.
+     */
+    public List<LLVMBlock> getSuccessors() {
+        LLVMInstruction term = this.getTerminator();
+        return (term == null || term.opcode != LLVMInstruction.Opcode.BR) ? Collections.emptyList() : term.targets;
+    }
+
+    public void print(Writer out) throws IOException {
+        out.write(this.label);
+        out.write(":\n");
+        for (LLVMInstruction instr : this.instructions) {
+            if (instr.comment != null) {
+                out.write("\n\t;");
+                out.write(instr.comment);
+                out.write('\n');
+            }
+            out.write('\t');
+            out.write(instr.toString());
+            out.write('\n');
+        }
+        out.write('\n');
+    }
+}
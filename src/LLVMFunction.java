@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* a function definition: signature plus its basic blocks, the first one being the entry */
+public class LLVMFunction {
+    private final String name;
+    private final String returnType;
+    List<LLVMValue> params;
+    List<LLVMBlock> blocks;
+    private String text;            // printed form of a function reused from a CompilationCache, it has no blocks
+    Set<String> inlined;            // functions whose bodies were copied into this one by the Inliner
+    Set<String> sends;              // "<class>.<method>" of every send dispatched through a vTable, by the class of the receiver
+
+    LLVMFunction(String name, String returnType, List<LLVMValue> params) {
+        this.name = name;
+        this.returnType = returnType;
+        this.params = params;
+        this.blocks = new ArrayList<>();
+        this.inlined = new LinkedHashSet<>();
+        this.sends = new LinkedHashSet<>();
+    }
+
+    /**
+     * A function already generated and optimized by an earlier run, printed as is.
+     */
+    public static LLVMFunction cached(String name, String returnType, String text) {
+        LLVMFunction function = new LLVMFunction(name, returnType, new ArrayList<>());
+        function.text = text;
+        return function;
+    }
+
+    /**
+     * A copy with blocks and instructions of its own, passes can rewrite it without touching this one.
+     */
+    public LLVMFunction copy() {
+        LLVMFunction copy = new LLVMFunction(this.name, this.returnType, new ArrayList<>(this.params));
+        copy.text = this.text;
+        copy.inlined.addAll(this.inlined);
+        copy.sends.addAll(this.sends);
+        Map<LLVMBlock, LLVMBlock> blocks = new HashMap<>();
+        for (LLVMBlock block : this.blocks)
+            blocks.put(block, copy.newBlock(block.getLabel()));
+        for (LLVMBlock block : this.blocks) {
+            for (LLVMInstruction instr : block.instructions) {
+                LLVMInstruction c = instr.copy();
+                c.targets.replaceAll(blocks::get);
+                blocks.get(block).add(c);
+            }
+        }
+        return copy;
+    }
+
+    public boolean isCached() {
+        return this.text != null;
+    }
+
+    /**
+     * Printed form of a function reused from a CompilationCache, null for the others.
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * Append a new, empty block to the function.
+     */
+    public LLVMBlock newBlock(String label) {
+        LLVMBlock block = new LLVMBlock(label);
+        this.blocks.add(block);
+        return block;
+    }
+
+    /**
+     * Move the instructions of block from index at on into a new block placed right after it, successors then
+     * get control from the new block (their phis are updated). block is left without a terminator.
+     */
+    public LLVMBlock split(LLVMBlock block, int at, String label) {
+        LLVMBlock after = new LLVMBlock(label);
+        after.instructions.addAll(block.instructions.subList(at, block.instructions.size()));
+        block.instructions.subList(at, block.instructions.size()).clear();
+        for (LLVMBlock succ : after.getSuccessors())
+            for (LLVMInstruction instr : succ.instructions)
+                if (instr.opcode == LLVMInstruction.Opcode.PHI)
+                    Collections.replaceAll(instr.targets, block, after);
+        this.blocks.add(this.blocks.indexOf(block) + 1, after);
+        return after;
+    }
+
+    public LLVMBlock getEntry() {
+        return this.blocks.get(0);
+    }
+
+    /**
+     * Map each register defined in the body to the instruction defining it.
+     */
+    public Map<LLVMValue, LLVMInstruction> getDefinitions() {
+        Map<LLVMValue, LLVMInstruction> defs = new HashMap<>();
+        for (LLVMBlock block : this.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                if (instr.result != null)
+                    defs.put(instr.result, instr);
+        return defs;
+    }
+
+    /**
+     * Replace every use of a value in the function body.
+     */
+    public void replaceAllUses(LLVMValue from, LLVMValue to) {
+        for (LLVMBlock block : this.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                instr.replaceUses(from, to);
+    }
+
+    /**
+     * Drop blocks that cannot be reached from the entry, along with phi entries coming from them.
+     */
+    public void removeUnreachableBlocks() {
+        DominatorTree dom = new DominatorTree(this);
+        if (dom.order.size() == this.blocks.size())
+            return;
+
+        this.blocks.removeIf(block -> !dom.isReachable(block));
+        for (LLVMBlock block : this.blocks) {
+            for (LLVMInstruction instr : block.instructions) {
+                if (instr.opcode != LLVMInstruction.Opcode.PHI)
+                    continue;
+                for (int i = instr.targets.size() - 1; i >= 0; i--) {
+                    if (!dom.isReachable(instr.targets.get(i))) {
+                        instr.targets.remove(i);
+                        instr.operands.remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+    public void print(Writer out) throws IOException {
+        if (this.text != null) {
+            out.write(this.text);
+            return;
+        }
+        out.write(";" + this.name + "\ndefine " + this.returnType + " @" + this.name + "(");
+        for (int i = 0; i < this.params.size(); i++) {
+            if (i > 0)
+                out.write(", ");
+            out.write(this.params.get(i).toString());
+        }
+        out.write(") {\n");
+        for (LLVMBlock block : this.blocks)
+            block.print(out);
+        out.write("}\n\n");
+    }
+}
@@ -1,521 +1,737 @@
-import javafx.util.Pair;
+import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-public class LLVMGenerator extends JavaParserBaseVisitor<String> {
-    private BufferedWriter out;
+public class LLVMGenerator extends JavaParserBaseVisitor<LLVMValue> {
+    protected LLVMModule module;
     protected Map<String, ClassData> data;
-    private LinkedList<String> messageQueue;
+    private ParseTreeProperty<String> receiverTypes;
+    private Types types;                // type ids of the compilation, as the first pass entered them
+    private ClassHierarchy hierarchy;   // null when every message send should go through the vTable
     private String className;
     private State state;
+    private LLVMFunction function;  // function and block instructions are currently appended to
+    private LLVMBlock block;
     private boolean inIfStatement;
+    protected ExecutorService workers;  // when set, method bodies are generated concurrently on it
+    protected Map<String, List<LLVMFunction>> cached;    // records of form: (class_name, methods reused from a CompilationCache)
+    private final Options options;      // what to generate: gc heap or calloc, buffered print or printf
+    private CompileStats stats;
 
-    // Constructor: set a pointer to output file and set class data collected during the first pass
-    LLVMGenerator(BufferedWriter out, Map<String, ClassData> data, LinkedList<String> messageQueue) {
-        this.out = out;
+    // Constructor: set class data collected during the first pass, generated code is kept in module
+    LLVMGenerator(Map<String, ClassData> data, ParseTreeProperty<String> receiverTypes, Types types) {
+        this(data, receiverTypes, types, null, new Options());
+    }
+
+    // Constructor: same as above, message sends with a single possible target in hierarchy are called directly
+    LLVMGenerator(Map<String, ClassData> data, ParseTreeProperty<String> receiverTypes, Types types, ClassHierarchy hierarchy, Options options) {
+        this.module = new LLVMModule();
         this.data = data;
         this.state = new State();
-        this.messageQueue = messageQueue;
+        this.receiverTypes = receiverTypes;
+        this.types = types;
+        this.hierarchy = hierarchy;
+        this.options = options;
+        this.cached = new HashMap<>();
     }
 
-    private String getArrayIndex(String index) {
+    /* a generator for the methods of one class, set up like this one, so --parallel-methods generates the same code */
+    private LLVMGenerator worker(String className) {
+        LLVMGenerator worker = new LLVMGenerator(this.data, this.receiverTypes, this.types, this.hierarchy, this.options);
+        worker.className = className;
+        worker.setStats(this.stats);
+        return worker;
+    }
 
-        if (index.startsWith("%")) {
-            emit("\n\t" + this.state.newReg() + " = add i32 " + index + ", 1");
-            return "%_" + (this.state.getRegCounter() - 1);
-        }
+    /**
+     * Count the registers and labels used by the generated code in stats.
+     */
+    public void setStats(CompileStats stats) {
+        this.stats = stats;
+        this.state.stats = stats;
+    }
+
+    /* add the cached methods of a class to the module, return false if it has to be generated */
+    private boolean reuse(String className) {
+        List<LLVMFunction> functions = this.cached.get(className);
+        if (functions == null)
+            return false;
+        functions.forEach(this.module::add);
+        return true;
+    }
 
-        return String.valueOf(Integer.parseInt(index) + 1);
+    private static String identifier(JavaParser.IdentifierContext ctx) {
+        return ctx.IDENTIFIER().getText();
     }
 
-    private String getField(String field, boolean wantContent) {
-        Pair<String, Integer> fieldInfo = this.data.get(this.className).vars.get(field);
-        String reg = this.state.newReg(), llvmType = ClassData.getSize(fieldInfo.getKey()).getValue();
+    private static String typeName(JavaParser.TypeContext ctx) {
+        if (ctx.arrayType() != null) {
+            return "array";
+        } else if (ctx.booleanType() != null) {
+            return "boolean";
+        } else if (ctx.integerType() != null) {
+            return "integer";
+        } else if (ctx.identifier() != null) {
+            return identifier(ctx.identifier());
+        } else {
+            throw new IllegalArgumentException("Unknown type");
+        }
+    }
 
-        emit("\n\t;load " + (wantContent ? "field " : "address of ") + this.className + "." + field + " from memory"
-                + "\n\t" + reg + " = getelementptr i8, i8* %this, i32 " + fieldInfo.getValue());
+    private LLVMValue newReg(String llvmType) {
+        return LLVMValue.register(llvmType, this.state.newReg());
+    }
 
-        if (!"i8".equals(llvmType))
-            emit("\t" + this.state.newReg() + " = bitcast i8* " + reg + " to " + llvmType + "*");
+    private void startBlock(String label) {
+        this.block = this.function.newBlock(label);
+    }
 
-        if (wantContent)
-            emit("\t" + this.state.newReg() + " = load " + llvmType + ", " + llvmType + "* " + ("%_" + (this.state.getRegCounter() - 2)));
-        return llvmType + (wantContent ? " " : "* ") + "%_" + (this.state.getRegCounter() - 1);
+    /* append a block created ahead of time (e.g. as a forward branch target) and continue emitting into it */
+    private void enterBlock(LLVMBlock block) {
+        this.function.blocks.add(block);
+        this.block = block;
     }
 
-    private String getIdAddress(String id) {
-        State.IdInfo info = this.state.getIdInfo(id);
+    private LLVMValue getArrayIndex(LLVMValue index) {
+
+        if (!index.isConstant()) {
+            LLVMValue reg = this.newReg("i32");
+            emit(LLVMInstruction.binary(LLVMInstruction.Opcode.ADD, reg, index, LLVMValue.constant(1)));
+            return reg;
+        }
 
-        return (info == null) ? this.getField(id, false) : info.getType() + "* " + info.getRegister();
+        return LLVMValue.constant(index.intValue() + 1);
     }
 
-    protected void emit(String s) {
-        try {
-            this.out.write(s + "\n");
-        } catch (IOException ex) {
-            System.err.println(ex.getMessage());
+    private LLVMValue getField(String field, boolean wantContent) {
+        ClassData cd = this.data.get(this.className);
+        int var = cd.vars.indexOf(field);
+        String llvmType = Types.llvmType(cd.vars.type(var)), pointerType = Types.pointerTo(cd.vars.type(var));
+        String comment = "load " + (wantContent ? "field " : "address of ") + this.className + "." + field + " from memory";
+        LLVMValue address;
+
+        if (cd.fieldIndex != null) {
+            /* typed access through the struct of the class */
+            String struct = ClassData.structType(this.className);
+            LLVMValue object = this.newReg(struct + "*");
+            address = this.newReg(pointerType);
+            emit(LLVMInstruction.bitcast(object, LLVMValue.register("i8*", "%this")).withComment(comment));
+            emit(LLVMInstruction.getElementPtr(address, struct, object, LLVMValue.constant(0), LLVMValue.constant(cd.fieldIndex[var])));
+        } else {
+            address = this.newReg("i8*");
+            emit(LLVMInstruction.getElementPtr(address, "i8", LLVMValue.register("i8*", "%this"), LLVMValue.constant(cd.vars.value(var)))
+                    .withComment(comment));
         }
+
+        if (!address.getType().equals(pointerType)) {
+            LLVMValue cast = this.newReg(pointerType);
+            emit(LLVMInstruction.bitcast(cast, address));
+            address = cast;
+        }
+
+        if (!wantContent)
+            return address;
+
+        LLVMValue content = this.newReg(llvmType);
+        emit(LLVMInstruction.load(content, address));
+        return content;
+    }
+
+    private LLVMValue getIdAddress(String id) {
+        int local = this.state.lookup(id);
+
+        return (local < 0) ? this.getField(id, false) : LLVMValue.register(Types.pointerTo(this.state.getType(local)), this.state.getRegister(local));
+    }
+
+    /* evaluate the arguments of a message send, left to right */
+    private List<LLVMValue> getArguments(JavaParser.ExpressionListContext ctx) {
+        List<LLVMValue> args = new ArrayList<>();
+
+        args.add(ctx.expression().accept(this));
+        for (JavaParser.ExpressionTermContext term : ctx.expressionTail().expressionTerm())
+            args.add(term.expression().accept(this));
+        return args;
+    }
+
+    protected void emit(LLVMInstruction instr) {
+        this.block.add(instr);
     }
 
     @Override
-    public String visitGoal(JavaParser.GoalContext ctx) {
+    public LLVMValue visitGoal(JavaParser.GoalContext ctx) {
         MyUtils.declareVTable(this);
+        MyUtils.declareStructs(this);
+        if (this.options.gcHeap)
+            MyUtils.declareGcMaps(this);
 
-        emit("\n"
+        this.module.addGlobal("\n"
                 + ";declare functions to be used\n"
                 + "declare i8* @calloc(i32, i32)\n"
                 + "declare i32 @printf(i8*, ...)\n"
                 + "declare void @exit(i32)\n\n"
 
                 + ";define constants and functions to be used\n"
-                + "@_cint = constant [4 x i8] c\"%d\\0a\\00\"\n"
                 + "@_cOOB = constant [15 x i8] c\"Out of bounds\\0a\\00\"\n"
-                + "define void @print_int(i32 %i) {\n"
-                + "\t%_str = bitcast [4 x i8]* @_cint to i8*\n"
-                + "\tcall i32 (i8*, ...) @printf(i8* %_str, i32 %i)\n"
-                + "\tret void\n}\n\n"
-
                 + "define void @throw_oob() {\n"
+                + (this.options.bufferedPrint ? "\tcall void @mj_flush()\n" : "")
                 + "\t%_str = bitcast [15 x i8]* @_cOOB to i8*\n"
                 + "\tcall i32 (i8*, ...) @printf(i8* %_str)\n"
                 + "\tcall void @exit(i32 1)\n"
-                + "\tret void\n}\n\n"
-                + "@_ctrue = constant [6 x i8] c\"true\\0a\\00\"\n"
-                + "@_cfalse = constant [7 x i8] c\"false\\0a\\00\"\n"
-
-                + "define void @print_bool(i1 %i){\n"
-                + "\tbr i1 %i, label %is_true, label %is_false\n\n"
-                + "is_true:\n"
-                + "\t%_res_true = bitcast [6 x i8]* @_ctrue to i8*\n"
-                + "\tbr label %result\n\n"
-                + "is_false:\n"
-                + "\t%_res_false = bitcast [7 x i8]* @_cfalse to i8*\n"
-                + "\tbr label %result\n\n"
-                + "result:\n"
-                + "\t%_res = phi i8* [%_res_true, %is_true], [%_res_false, %is_false]\n"
-                + "\tcall i32 (i8*, ...) @printf(i8* %_res)\n"
-                + "\tret void\n}\n");
+                + "\tret void\n}\n\n");
+
+        if (this.options.bufferedPrint) {
+            this.module.addGlobal(";print functions of runtime/minijava_print.c\n"
+                    + "declare void @print_int(i32)\n"
+                    + "declare void @print_bool(i1 zeroext)\n"
+                    + "declare void @mj_flush()\n");
+        } else {
+            this.module.addGlobal("@_cint = constant [4 x i8] c\"%d\\0a\\00\"\n"
+                    + "define void @print_int(i32 %i) {\n"
+                    + "\t%_str = bitcast [4 x i8]* @_cint to i8*\n"
+                    + "\tcall i32 (i8*, ...) @printf(i8* %_str, i32 %i)\n"
+                    + "\tret void\n}\n\n"
+
+                    + "@_ctrue = constant [6 x i8] c\"true\\0a\\00\"\n"
+                    + "@_cfalse = constant [7 x i8] c\"false\\0a\\00\"\n"
+
+                    + "define void @print_bool(i1 %i){\n"
+                    + "\tbr i1 %i, label %is_true, label %is_false\n\n"
+                    + "is_true:\n"
+                    + "\t%_res_true = bitcast [6 x i8]* @_ctrue to i8*\n"
+                    + "\tbr label %result\n\n"
+                    + "is_false:\n"
+                    + "\t%_res_false = bitcast [7 x i8]* @_cfalse to i8*\n"
+                    + "\tbr label %result\n\n"
+                    + "result:\n"
+                    + "\t%_res = phi i8* [%_res_true, %is_true], [%_res_false, %is_false]\n"
+                    + "\tcall i32 (i8*, ...) @printf(i8* %_res)\n"
+                    + "\tret void\n}\n");
+        }
 
         ctx.mainClass().accept(this);
+
+        if (this.workers == null) {
+            for (JavaParser.TypeDeclarationContext type : ctx.typeDeclaration())
+                type.accept(this);
+        } else
+            this.generateConcurrently(ctx.typeDeclaration());
         return null;
     }
 
-    @Override
-    public String visitMainClass(JavaParser.MainClassContext ctx) {
-        this.className = ctx.identifier(0).accept(this);
-        emit("define i32 @main() {");
+    /* class data is frozen after the first pass and each method only needs a State of its own, so every body is
+       generated by a separate generator; functions are appended in source order, keeping the output stable */
+    private void generateConcurrently(List<JavaParser.TypeDeclarationContext> types) {
+        List<Future<LLVMFunction>> bodies = new ArrayList<>();
+
+        for (JavaParser.TypeDeclarationContext type : types) {
+            String className;
+            List<JavaParser.MethodDeclarationContext> methods;
+            if (type.classDeclaration() != null) {
+                className = identifier(type.classDeclaration().identifier());
+                methods = type.classDeclaration().methodDeclaration();
+            } else {
+                className = identifier(type.classExtendsDeclaration().identifier(0));
+                methods = type.classExtendsDeclaration().methodDeclaration();
+            }
 
-        if (ctx.varDeclaration(0) != null) {
-            ctx.varDeclaration(0).accept(this);
+            if (this.cached.containsKey(className)) {
+                for (LLVMFunction function : this.cached.get(className))
+                    bodies.add(CompletableFuture.completedFuture(function));
+                continue;
+            }
+
+            for (JavaParser.MethodDeclarationContext method : methods) {
+                bodies.add(this.workers.submit(() -> {
+                    LLVMGenerator worker = this.worker(className);
+                    method.accept(worker);
+                    return worker.function;
+                }));
+            }
         }
-        if (ctx.statement(0) != null) {
-            ctx.statement(0).accept(this);
+
+        try {
+            for (Future<LLVMFunction> body : bodies)
+                this.module.add(body.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while generating methods", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
         }
+    }
+
+    @Override
+    public LLVMValue visitMainClass(JavaParser.MainClassContext ctx) {
+        this.className = identifier(ctx.identifier(0));
+        if (this.reuse(this.className))
+            return null;
 
-        emit("\tret i32 0\n}\n");
+        this.function = new LLVMFunction("main", "i32", new ArrayList<>());
+        this.module.add(this.function);
+        this.startBlock("entry");
+
+        for (JavaParser.VarDeclarationContext var : ctx.varDeclaration())
+            var.accept(this);
+        for (JavaParser.StatementContext statement : ctx.statement())
+            statement.accept(this);
+
+        emit(LLVMInstruction.ret(LLVMValue.constant(0)));
 
         return null;
     }
 
     @Override
-    public String visitTypeDeclaration(JavaParser.TypeDeclarationContext ctx) {
-        ctx.classDeclaration().accept(this);
+    public LLVMValue visitTypeDeclaration(JavaParser.TypeDeclarationContext ctx) {
+        if (ctx.classDeclaration() != null)
+            ctx.classDeclaration().accept(this);
+        else
+            ctx.classExtendsDeclaration().accept(this);
         return null;
     }
 
     @Override
-    public String visitClassDeclaration(JavaParser.ClassDeclarationContext ctx) {
-        this.className = ctx.identifier().accept(this);
+    public LLVMValue visitClassDeclaration(JavaParser.ClassDeclarationContext ctx) {
+        this.className = identifier(ctx.identifier());
+        if (this.reuse(this.className))
+            return null;
 
         for (int i = 0; i < ctx.methodDeclaration().size(); i++) {
             ctx.methodDeclaration(i).accept(this);
         }
 
-//        ctx.methodDeclaration(0).accept(this);
-
         return null;
     }
 
     @Override
-    public String visitClassExtendsDeclaration(JavaParser.ClassExtendsDeclarationContext ctx) {
-        this.className = ctx.identifier(0).accept(this);
+    public LLVMValue visitClassExtendsDeclaration(JavaParser.ClassExtendsDeclarationContext ctx) {
+        this.className = identifier(ctx.identifier(0));
+        if (this.reuse(this.className))
+            return null;
 
         for (int i = 0; i < ctx.methodDeclaration().size(); i++) {
             ctx.methodDeclaration(i).accept(this);
         }
-//        ctx.methodDeclaration(0).accept(this);
 
         return null;
     }
 
     @Override
-    public String visitVarDeclaration(JavaParser.VarDeclarationContext ctx) {
-        String varType = ClassData.getSize(ctx.type().accept(this)).getValue();
-        String id = ctx.identifier().accept(this);
+    public LLVMValue visitVarDeclaration(JavaParser.VarDeclarationContext ctx) {
+        int type = this.types.id(typeName(ctx.type()));
+        String id = identifier(ctx.identifier());
 
-        emit("\n\t;allocate space for local variable %" + id + "\n\t%" + id + " = alloca " + varType);
-        this.state.put(id, "%" + id, varType); // keep track of the register holding that address
+        emit(LLVMInstruction.alloca(LLVMValue.register(Types.pointerTo(type), "%" + id), Types.llvmType(type))
+                .withComment("allocate space for local variable %" + id));
+        this.state.put(id, "%" + id, type); // keep track of the register holding that address
         return null;
     }
 
     @Override
-    public String visitMethodDeclaration(JavaParser.MethodDeclarationContext ctx) {
-        String id = ctx.identifier().accept(this);
-        String returnType = ClassData.getSize(ctx.type().accept(this)).getValue();
+    public LLVMValue visitMethodDeclaration(JavaParser.MethodDeclarationContext ctx) {
+        String id = identifier(ctx.identifier());
+        String returnType = Types.llvmType(typeName(ctx.type()));
 
-        ArrayList<Pair<String, String>> parameters = this.data.get(this.className).methods.get(id).arguments;
-        emit(";" + this.className + "." + id + "\ndefine " + returnType + " @" + this.className + "." + id + MyUtils.getArgs(parameters, true) + "{");
+        SymbolTable parameters = this.data.get(this.className).methods.get(id).arguments;
+        List<LLVMValue> params = new ArrayList<>();
+        params.add(LLVMValue.register("i8*", "%this"));
+        if (parameters != null) {
+            for (int i = 0; i < parameters.size(); i++)
+                params.add(LLVMValue.register(Types.llvmType(parameters.type(i)), "%." + parameters.name(i)));
+        }
 
-        String llvmType, paramID;
+        this.function = new LLVMFunction(this.className + "." + id, returnType, params);
+        this.module.add(this.function);
+        this.startBlock("entry");
+
+        String paramID;
         if (parameters != null) {
-            emit("\t;allocate space and store each parameter of the method");
-            for (Pair<String, String> par : parameters) {
-                paramID = par.getValue();
-                llvmType = ClassData.getSize(par.getKey()).getValue();
-                emit("\t%" + paramID + " = alloca " + llvmType +
-                        "\n\tstore " + llvmType + " %." + paramID + ", " + llvmType + "* %" + paramID);
-                this.state.put(paramID, "%" + paramID, llvmType);
+            String comment = "allocate space and store each parameter of the method";
+            for (int i = 0; i < parameters.size(); i++) {
+                paramID = parameters.name(i);
+                int type = parameters.type(i);
+                LLVMValue address = LLVMValue.register(Types.pointerTo(type), "%" + paramID);
+                emit(LLVMInstruction.alloca(address, Types.llvmType(type)).withComment(comment));
+                emit(LLVMInstruction.store(params.get(i + 1), address));
+                this.state.put(paramID, "%" + paramID, type);
+                comment = null;
             }
         }
 
-        for(int i = 0; i < ctx.expression().children.size(); i++) {
+        for(int i = 0; i < ctx.varDeclaration().size(); i++) {
             ctx.varDeclaration(i).accept(this);
         }
 
         for(int i = 0; i < ctx.statement().size(); i++) {
             ctx.statement(i).accept(this);
         }
-//        ctx.varDeclaration(0).accept(this);
-//        ctx.statement(0).accept(this);
 
-        emit("\tret " + ctx.expression().accept(this) + "\n}\n");
+        emit(LLVMInstruction.ret(ctx.expression().accept(this)));
         this.state.clear();
         return null;
     }
 
     @Override
-    public String visitAssignmentStatement(JavaParser.AssignmentStatementContext ctx) {
-        String leftID = ctx.identifier().accept(this);
-        String rightSide = ctx.expression().accept(this);
-        String leftType, leftReg, rightType = rightSide.split(" ")[0];
-        String[] leftInfo = this.getIdAddress(leftID).split(" ");
-        leftType = leftInfo[0];
-        leftReg = leftInfo[1];
-
-        if (!leftType.equals(rightType + "*")) {
-            emit("\n\t;adjust pointer type of left operand\n\t"
-                    + this.state.newReg() + " = bitcast " + leftType + " " + leftReg + " to " + rightType + "*");
-            leftType = rightType + "*";
-            leftReg = "%_" + (this.state.getRegCounter() - 1);
+    public LLVMValue visitAssignmentStatement(JavaParser.AssignmentStatementContext ctx) {
+        String leftID = identifier(ctx.identifier());
+        LLVMValue rightSide = ctx.expression().accept(this);
+        LLVMValue left = this.getIdAddress(leftID);
+
+        /* cast the pointer being stored rather than the slot it goes to, so the slot stays promotable to a register */
+        if (!left.getType().equals(rightSide.getType() + "*")) {
+            LLVMValue cast = this.newReg(left.getType().substring(0, left.getType().length() - 1));
+            emit(LLVMInstruction.bitcast(cast, rightSide).withComment("adjust pointer type of right operand"));
+            rightSide = cast;
         }
 
-        emit("\n\t;store result\n\tstore " + rightSide + ", " + leftType + " " + leftReg);
+        emit(LLVMInstruction.store(rightSide, left).withComment("store result"));
         return null;
     }
 
     @Override
-    public String visitArrayAssignmentStatetment(JavaParser.ArrayAssignmentStatetmentContext ctx) {
-        String leftID = ctx.identifier().accept(this), leftInfo = this.getIdAddress(leftID);
+    public LLVMValue visitArrayAssignmentStatetment(JavaParser.ArrayAssignmentStatetmentContext ctx) {
+        String leftID = identifier(ctx.identifier());
+        LLVMValue leftInfo = this.getIdAddress(leftID);
 
-        String index = ctx.expression(0).accept(this).split(" ")[1];
-        String rightSide = ctx.expression(0).accept(this);
+        LLVMValue index = ctx.expression(0).accept(this);
+        LLVMValue rightSide = ctx.expression(1).accept(this);
 
-        this.checkArrayIndex(leftInfo.split(" ")[1], index, false);
+        this.checkArrayIndex(leftInfo, index, false);
         index = this.getArrayIndex(index);
 
-        emit("\n\t;assign a value to the array element\n\t" + this.state.newReg() + " = load i8*, " + leftInfo + "\n\t"
-                + this.state.newReg() + " = bitcast i8* %_" + (this.state.getRegCounter() - 2) + " to i32*\n\t"
-                + this.state.newReg() + " = getelementptr i32, i32* %_" + (this.state.getRegCounter() - 2) + " , i32 " + index
-                + "\n\tstore " + rightSide + ", i32* %_" + (this.state.getRegCounter() - 1));
+        LLVMValue array = this.newReg("i8*"), elements = this.newReg("i32*"), element = this.newReg("i32*");
+        emit(LLVMInstruction.load(array, leftInfo).withComment("assign a value to the array element"));
+        emit(LLVMInstruction.bitcast(elements, array));
+        emit(LLVMInstruction.getElementPtr(element, "i32", elements, index));
+        emit(LLVMInstruction.store(rightSide, element));
         return null;
     }
 
     @Override
-    public String visitIfStatement(JavaParser.IfStatementContext ctx) {
+    public LLVMValue visitIfStatement(JavaParser.IfStatementContext ctx) {
         String[] ifLabel = this.state.newLabel("if");
-        String condition = ctx.expression().accept(this), brEnd = "\tbr label %" + ifLabel[2] + "\n\n";
+        LLVMValue condition = ctx.expression().accept(this);
+        LLVMBlock thenBlock = new LLVMBlock(ifLabel[0]), elseBlock = new LLVMBlock(ifLabel[1]), endBlock = new LLVMBlock(ifLabel[2]);
 
         this.inIfStatement = true;
-        emit("\n\t;if statement\n\tbr " + condition + " ,label %" + ifLabel[0] + ", label %" + ifLabel[1] + "\n\n" + ifLabel[0] + ":");
-
-        for(int i = 0; i < ctx.statement().size(); i++) {
-            ctx.statement(i).accept(this);
-        }
-//        ctx.statement(0).accept(this);
-        emit(brEnd + ifLabel[1] + ":");
+        emit(LLVMInstruction.br(condition, thenBlock, elseBlock).withComment("if statement"));
 
-        for(int i = 0; i < ctx.statement().size(); i++) {
-            ctx.statement(i).accept(this);
-        }
+        this.enterBlock(thenBlock);
+        ctx.statement(0).accept(this);
+        emit(LLVMInstruction.br(endBlock));
 
-//        ctx.statement(0).accept(this);
-        emit(brEnd + ifLabel[2] + ":");
+        this.enterBlock(elseBlock);
+        ctx.statement(1).accept(this);
+        emit(LLVMInstruction.br(endBlock));
+        this.enterBlock(endBlock);
         this.inIfStatement = false;
 
         return null;
     }
 
     @Override
-    public String visitWhileStatement(JavaParser.WhileStatementContext ctx) {
+    public LLVMValue visitWhileStatement(JavaParser.WhileStatementContext ctx) {
         String[] whileLabel = this.state.newLabel("while");
-        String condition;
+        LLVMBlock condBlock = new LLVMBlock(whileLabel[0]), bodyBlock = new LLVMBlock(whileLabel[1]), endBlock = new LLVMBlock(whileLabel[2]);
+        LLVMValue condition;
 
-        emit("\n\t;while statement\n\tbr label %" + whileLabel[0] + "\n\n" + whileLabel[0] + ":");
+        emit(LLVMInstruction.br(condBlock).withComment("while statement"));
+        this.enterBlock(condBlock);
         condition = ctx.expression().accept(this);
-        emit("\tbr " + condition + " ,label %" + whileLabel[1] + ", label %" + whileLabel[2] + "\n\n" + whileLabel[1] + ":");
+        emit(LLVMInstruction.br(condition, bodyBlock, endBlock));
+
+        this.enterBlock(bodyBlock);
         ctx.statement().accept(this);
-        emit("\n\tbr label %" + whileLabel[0] + "\n" + whileLabel[2] + ":\n");
+        emit(LLVMInstruction.br(condBlock));
 
-        return condition;
+        this.enterBlock(endBlock);
+        return null;
     }
 
     @Override
-    public String visitPrintStatement(JavaParser.PrintStatementContext ctx) {
-        String expr = ctx.expression().accept(this);
-        String type = expr.split(" ")[0];
+    public LLVMValue visitPrintStatement(JavaParser.PrintStatementContext ctx) {
+        LLVMValue expr = ctx.expression().accept(this);
+        String type = expr.getType();
+        LLVMValue callee = LLVMValue.global("void (" + type + ")*", "@print_" + (type.equals("i1") ? "bool" : "int"));
 
-        emit("\n\t;display an " + type + "\n\tcall void (" + type + ") @print_" + (type.equals("i1") ? "bool" : "int") + "(" + expr + ")");
+        emit(LLVMInstruction.call(null, "void", callee, Collections.singletonList(expr)).withComment("display an " + type));
         return null;
     }
 
-//    @Override
-//    public String visitExpression(JavaParser.ExpressionContext ctx) {
-//        int index =  ctx.getRuleIndex();
-//
-//
-//    }
-
-
     @Override
-    public String visitMessageSend(JavaParser.MessageSendContext ctx) {
-        String classPointer = ctx.primaryExpression().accept(this);
-        String methodName = ctx.identifier().accept(this), signature, returnType;
-        MethodData methodData = this.data.get(this.messageQueue.removeFirst()).methods.get(methodName);
+    public LLVMValue visitMessageSend(JavaParser.MessageSendContext ctx) {
+        LLVMValue classPointer = ctx.primaryExpression().accept(this);
+        String methodName = identifier(ctx.identifier()), returnType, receiverClass = this.receiverTypes.get(ctx);
+        MethodData methodData = this.data.get(receiverClass).methods.get(methodName);
 
         int offset = methodData.offset;
-        returnType = ClassData.getSize(methodData.returnType).getValue();
-        signature = ctx.expressionList().isEmpty() ? ctx.expressionList().accept(this).replaceFirst("[(]", "(" + classPointer + ", ") : "(" + classPointer + ")";
-
+        returnType = Types.llvmType(methodData.returnType);
+
+        List<LLVMValue> args = new ArrayList<>();
+        args.add(classPointer);
+        if (ctx.expressionList() != null)
+            args.addAll(this.getArguments(ctx.expressionList()));
+
+        String target = this.hierarchy == null ? null : this.hierarchy.uniqueImplementation(receiverClass, methodName);
+        if (target != null)
+            return this.directCall(target, methodName, methodData, args);
+
+        this.function.sends.add(receiverClass + "." + methodName);
+        StringBuilder signature = new StringBuilder(returnType + " (");
+        for (int i = 0; i < args.size(); i++)
+            signature.append(i > 0 ? ", " : "").append(args.get(i).getType());
+        signature.append(")*");
+
+        LLVMValue vTablePtr = this.newReg("i8***"), vTable = this.newReg("i8**"), slot = this.newReg("i8**"),
+                body = this.newReg("i8*"), method = this.newReg(signature.toString()), result = this.newReg(returnType);
+
+        emit(LLVMInstruction.bitcast(vTablePtr, classPointer).withComment(vTablePtr.getName() + " points to the vTable"));
+        emit(LLVMInstruction.load(vTable, vTablePtr));
+        emit(LLVMInstruction.getElementPtr(slot, "i8*", vTable, LLVMValue.constant(offset))
+                .withComment(slot.getName() + " points to the address of " + methodName));
+        emit(LLVMInstruction.load(body, slot));
+        emit(LLVMInstruction.bitcast(method, body).withComment("cast pointer to the appropriate size"));
+        emit(LLVMInstruction.call(result, returnType, method, args));
+        return result;
+    }
+
+    /* no subclass overrides the method, so skip the vTable and call the only implementation by name */
+    private LLVMValue directCall(String target, String methodName, MethodData methodData, List<LLVMValue> args) {
+        String returnType = Types.llvmType(methodData.returnType);
+        StringBuilder signature = new StringBuilder(returnType + " (i8*");
+
+        /* arguments have to match the parameter types of the definition exactly */
+        for (int i = 1; i < args.size(); i++) {
+            String paramType = Types.llvmType(methodData.arguments.type(i - 1));
+            signature.append(", ").append(paramType);
+            if (!args.get(i).getType().equals(paramType)) {
+                LLVMValue cast = this.newReg(paramType);
+                emit(LLVMInstruction.bitcast(cast, args.get(i)));
+                args.set(i, cast);
+            }
+        }
+        signature.append(")*");
 
-        emit("\t" + this.state.newReg() + " = bitcast " + classPointer + " to i8*** \t\t\t\t;%_" + (this.state.getRegCounter() - 1) + " points to the vTable"
-                + "\n\t" + this.state.newReg() + " = load i8**, i8*** %_" + (this.state.getRegCounter() - 2) + "\t\t\t\t;%_" + (this.state.getRegCounter() - 1)
-                + " is the vTable\n\t" + this.state.newReg() + " = getelementptr i8*, i8** %_" + (this.state.getRegCounter() - 2) + ", i32 " + offset + "\t;%_"
-                + (this.state.getRegCounter() - 1) + " points to the address of " + methodName
-                + "\n\t" + this.state.newReg() + " = load i8*, i8** %_" + (this.state.getRegCounter() - 2)
-                + "\t\t\t\t\t;%_" + (this.state.getRegCounter() - 1) + " points to the body of " + methodName
-                + "\n\t" + this.state.newReg() + " = bitcast i8* %_" + (this.state.getRegCounter() - 2) + " to " + returnType + " "
-                + MyUtils.filterSignature(signature, classPointer) + "*\t;%_cast pointer to the appropriate size\n\t"
-                + this.state.newReg() + " = call " + returnType + " %_" + (this.state.getRegCounter() - 2) + signature);
-        return returnType + " %_" + (this.state.getRegCounter() - 1);
+        LLVMValue result = this.newReg(returnType);
+        emit(LLVMInstruction.call(result, returnType, LLVMValue.global(signature.toString(), "@" + target + "." + methodName), args)
+                .withComment("only " + target + "." + methodName + " can be reached, call it directly"));
+        return result;
     }
 
     @Override
-    public String visitExpressionList(JavaParser.ExpressionListContext ctx) {
-        return "(" + ctx.expression().accept(this) + ctx.expressionTail().accept(this) + ")";
-    }
+    public LLVMValue visitArrayLookup(JavaParser.ArrayLookupContext ctx) {
+        LLVMValue id = ctx.primaryExpression(0).accept(this);
+        LLVMValue index = ctx.primaryExpression(1).accept(this);
 
-    @Override
-    public String visitExpressionTail(JavaParser.ExpressionTailContext ctx) {
-        String rv = "";
+        this.checkArrayIndex(id, index, true);
 
-        for (int i = 0; i < ctx.expressionTerm().size(); i++)
-            rv += ctx.expressionTerm().get(i).accept(this);
-        return rv;
+        return this.getArrayElement(id, this.getArrayIndex(index));
     }
 
     @Override
-    public String visitExpressionTerm(JavaParser.ExpressionTermContext ctx) {
-        return ", " + ctx.expression().accept(this);
+    public LLVMValue visitArrayLength(JavaParser.ArrayLengthContext ctx) {
+        return this.getArrayElement(ctx.primaryExpression().accept(this), LLVMValue.constant(0));
     }
 
     @Override
-    public String visitArrayLookup(JavaParser.ArrayLookupContext ctx) {
-        String id = ctx.primaryExpression(0).accept(this);
-        String index = ctx.primaryExpression(0).accept(this).split(" ")[1];
-
-        this.checkArrayIndex(id, index, true);
-
-        return this.getArrayElement(id, this.getArrayIndex(index));
+    public LLVMValue visitCompareExpression(JavaParser.CompareExpressionContext ctx) {
+        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(1).accept(this), LLVMInstruction.Opcode.ICMP_SLT);
     }
 
     @Override
-    public String visitCompareExpression(JavaParser.CompareExpressionContext ctx) {
-        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(0).accept(this), "icmp slt");
+    public LLVMValue visitPlusExpression(JavaParser.PlusExpressionContext ctx) {
+        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(1).accept(this), LLVMInstruction.Opcode.ADD);
     }
 
     @Override
-    public String visitPlusExpression(JavaParser.PlusExpressionContext ctx) {
-        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(0).accept(this), "add");
+    public LLVMValue visitMinusExpression(JavaParser.MinusExpressionContext ctx) {
+        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(1).accept(this), LLVMInstruction.Opcode.SUB);
     }
 
     @Override
-    public String visitMinusExpression(JavaParser.MinusExpressionContext ctx) {
-        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(0).accept(this), "sub");
+    public LLVMValue visitTimesExpression(JavaParser.TimesExpressionContext ctx) {
+        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(1).accept(this), LLVMInstruction.Opcode.MUL);
     }
 
     @Override
-    public String visitTimesExpression(JavaParser.TimesExpressionContext ctx) {
-        return arithmeticExpression(ctx.primaryExpression(0).accept(this), ctx.primaryExpression(0).accept(this), "mul");
-    }
+    public LLVMValue visitAndExpression(JavaParser.AndExpressionContext ctx) {
+        LLVMValue left = ctx.clause(0).accept(this), right;
+
+        /* a constant left side decides whether the right side runs at all, no branches needed */
+        if (left.isConstant())
+            return left.intValue() == 0 ? left : ctx.clause(1).accept(this);
 
-    @Override
-    public String visitAndExpression(JavaParser.AndExpressionContext ctx) {
-        String leftReg = ctx.clause(0).accept(this), rightReg;
         String[] labels = this.state.newLabel("and");
+        LLVMBlock trueBlock = new LLVMBlock(labels[0]), falseBlock = new LLVMBlock(labels[1]), endBlock = new LLVMBlock(labels[2]);
+
+        emit(LLVMInstruction.br(left, trueBlock, falseBlock)
+                .withComment("short-circuit and clause, right side gets evaluated if and only if left side evaluates to true"));
 
-        emit("\t;short-circuit and clause, right side gets evaluated if and only if left side evaluates to true\n"
-                + "\tbr " + leftReg + ", label %" + labels[0] + ", label %" + labels[1] + "\n\n" + labels[0] + ":\n\t");
+        this.enterBlock(trueBlock);
+        right = ctx.clause(1).accept(this);
+        LLVMBlock rightEnd = this.block;    // right side may have opened blocks of its own
+        emit(LLVMInstruction.br(endBlock));
 
-        rightReg = ctx.clause(0).accept(this);
+        this.enterBlock(falseBlock);
+        emit(LLVMInstruction.br(endBlock));
 
-        emit("\tbr label %" + labels[2] + "\n\n" + labels[1] + ":\n\n\tbr label %" + labels[2] + "\n\n" + labels[2] + ":\n\n"
-                + "\t" + this.state.newReg() + " = phi i1 [" + rightReg.split(" ")[1] + ", %" + labels[0] + "],"
-                + "[" + leftReg.split(" ")[1] + ", %" + labels[1] + "]");
-        return "i1 %_" + (this.state.getRegCounter() - 1);
+        this.enterBlock(endBlock);
+        LLVMValue result = this.newReg("i1");
+        LLVMInstruction phi = LLVMInstruction.phi(result);
+        phi.addIncoming(right, rightEnd);
+        phi.addIncoming(left, falseBlock);
+        emit(phi);
+        return result;
     }
 
     @Override
-    public String visitClause(JavaParser.ClauseContext ctx) {
+    public LLVMValue visitClause(JavaParser.ClauseContext ctx) {
         return ctx.primaryExpression().accept(this);
     }
 
     @Override
-    public String visitPrimaryExpression(JavaParser.PrimaryExpressionContext ctx) {
-        String child = visit(ctx.getChild(0));
-        State.IdInfo id;
+    public LLVMValue visitPrimaryExpression(JavaParser.PrimaryExpressionContext ctx) {
+        int id;
 
         if (ctx.identifier() != null) {
-            id = this.state.getIdInfo(child);
+            String child = identifier(ctx.identifier());
+            id = this.state.lookup(child);
 
-            if (id == null) {
+            if (id < 0) {
                 return this.getField(child, true);
             }
 
-            emit("\n\t;loading local variable '" + child + "' from stack\n\t"
-                    + this.state.newReg() + " = load " + id.getType() + ", " + id.getType() + "* " + id.getRegister());
-            return id.getType() + " %_" + (this.state.getRegCounter() - 1);
+            int type = this.state.getType(id);
+            LLVMValue reg = this.newReg(Types.llvmType(type));
+            emit(LLVMInstruction.load(reg, LLVMValue.register(Types.pointerTo(type), this.state.getRegister(id)))
+                    .withComment("loading local variable '" + child + "' from stack"));
+            return reg;
         }
 
-        return child;
+        return visit(ctx.getChild(0));
     }
 
     @Override
-    public String visitType(JavaParser.TypeContext ctx) {
-        if (ctx.arrayType() != null) {
-            return "array";
-        } else if (ctx.booleanType() != null) {
-            return "boolean";
-        } else if (ctx.integerType() != null) {
-            return "integer";
-        } else if (ctx.identifier() != null) {
-            return visit(ctx.identifier());
-        } else {
-            throw new IllegalArgumentException("Unknown type");
-        }
+    public LLVMValue visitIntegerLiteral(JavaParser.IntegerLiteralContext ctx) {
+        return LLVMValue.constant("i32", ctx.DECIMAL_LITERAL().getText());
     }
 
     @Override
-    public String visitBooleanType(JavaParser.BooleanTypeContext ctx) {
-        return "boolean";
+    public LLVMValue visitBoolLiteral(JavaParser.BoolLiteralContext ctx) {
+        return LLVMValue.constant("i1", ctx.BOOL_LITERAL().getText());
     }
 
     @Override
-    public String visitArrayType(JavaParser.ArrayTypeContext ctx) {
-        return "array";
+    public LLVMValue visitThisExpression(JavaParser.ThisExpressionContext ctx) {
+        return LLVMValue.register("i8*", "%this");
     }
 
     @Override
-    public String visitIntegerType(JavaParser.IntegerTypeContext ctx) {
-        return "integer";
-    }
+    public LLVMValue visitArrayAllocationExpression(JavaParser.ArrayAllocationExpressionContext ctx) {
+        LLVMValue size = ctx.expression().accept(this);
+        LLVMValue length = this.newReg("i32"), memory = this.newReg("i8*"), array = this.newReg("i32*");
 
-    @Override
-    public String visitIntegerLiteral(JavaParser.IntegerLiteralContext ctx) {
-        return "i32 " + ctx.DECIMAL_LITERAL();
-    }
-
-    @Override
-    public String visitBoolLiteral(JavaParser.BoolLiteralContext ctx) {
-        return "i1 " + ctx.BOOL_LITERAL();
-    }
-
-    @Override
-    public String visitThisExpression(JavaParser.ThisExpressionContext ctx) {
-        return "i8* %this";
-    }
-
-    @Override
-    public String visitArrayAllocationExpression(JavaParser.ArrayAllocationExpressionContext ctx) {
-        String size = ctx.expression().accept(this).split(" ")[1];
-        emit("\n\t;allocate space for new array of size " + size + " + 1 place to store size at\n\t"
-                + this.state.newReg() + " = add i32 " + size + ", 1\n"
-                + "\t" + this.state.newReg() + " = call i8* @calloc(i32 4, i32 %_" + (this.state.getRegCounter() - 2) + ")\n"
-                + "\t" + this.state.newReg() + " = bitcast i8* %_" + (this.state.getRegCounter() - 2) + " to i32*\n"
-                + "\n\t;store size at index 0\n\tstore i32 " + size + ", i32* %_" + (this.state.getRegCounter() - 1));
-        return "i32* %_" + (this.state.getRegCounter() - 1);
+        emit(LLVMInstruction.binary(LLVMInstruction.Opcode.ADD, length, size, LLVMValue.constant(1))
+                .withComment("allocate space for new array of size " + size.getName() + " + 1 place to store size at"));
+        if (this.options.gcHeap) {
+            LLVMValue bytes = this.newReg("i32");
+            emit(LLVMInstruction.binary(LLVMInstruction.Opcode.MUL, bytes, length, LLVMValue.constant(4)));
+            emit(LLVMInstruction.call(memory, "i8*", LLVMValue.global("i8* (i32, i8*)*", "@mj_new"), Arrays.asList(bytes, MyUtils.gcMap(this, "array"))));
+        } else
+            emit(LLVMInstruction.call(memory, "i8*", LLVMValue.global("i8* (i32, i32)*", "@calloc"), Arrays.asList(LLVMValue.constant(4), length)));
+        emit(LLVMInstruction.bitcast(array, memory));
+        emit(LLVMInstruction.store(size, array).withComment("store size at index 0"));
+        return array;
     }
 
     @Override
-    public String visitAllocationExpression(JavaParser.AllocationExpressionContext ctx) {
-        String className = ctx.identifier().accept(this), tableSize;
+    public LLVMValue visitAllocationExpression(JavaParser.AllocationExpressionContext ctx) {
+        String className = identifier(ctx.identifier()), tableSize;
         ClassData data = this.data.get(className);
         tableSize = "[" + data.methods.size() + " x i8*]";
 
-        emit("\n\t;allocate space for a new \"" + className + "\" object\n\t" + this.state.newReg() + " = call i8* @calloc(i32 1, i32 " + data.size + ")"
-                + "\n\t" + this.state.newReg() + " = bitcast i8* %_" + (this.state.getRegCounter() - 2) + " to i8***\n"
-                + "\t" + this.state.newReg() + " = getelementptr " + tableSize + ", " + tableSize + "* @." + className + "_vtable, i32 0, i32 0\n"
-                + "\tstore i8** %_" + (this.state.getRegCounter() - 1) + ", i8*** %_" + (this.state.getRegCounter() - 2));
-        return "i8* %_" + (this.state.getRegCounter() - 3);
+        LLVMValue object = this.newReg("i8*"), vTablePtr = this.newReg("i8***"), vTable = this.newReg("i8**");
+        LLVMInstruction allocation = this.options.gcHeap
+                ? LLVMInstruction.call(object, "i8*", LLVMValue.global("i8* (i32, i8*)*", "@mj_new"), Arrays.asList(LLVMValue.constant(data.size), MyUtils.gcMap(this, className)))
+                : LLVMInstruction.call(object, "i8*", LLVMValue.global("i8* (i32, i32)*", "@calloc"), Arrays.asList(LLVMValue.constant(1), LLVMValue.constant(data.size)));
+
+        emit(allocation.withComment("allocate space for a new \"" + className + "\" object"));
+        emit(LLVMInstruction.bitcast(vTablePtr, object));
+        emit(LLVMInstruction.getElementPtr(vTable, tableSize, LLVMValue.global(tableSize + "*", "@." + className + "_vtable"),
+                LLVMValue.constant(0), LLVMValue.constant(0)));
+        emit(LLVMInstruction.store(vTable, vTablePtr));
+        return object;
     }
 
     @Override
-    public String visitNotExpression(JavaParser.NotExpressionContext ctx) {
-        String clause = ctx.clause().accept(this);
-        emit("\n\t;apply logical not, using xor\n\t" + this.state.newReg() + " = xor " + clause + ", 1");
-        return "i1 %_" + (this.state.getRegCounter() - 1);
+    public LLVMValue visitNotExpression(JavaParser.NotExpressionContext ctx) {
+        LLVMValue clause = ctx.clause().accept(this), reg;
+        if (clause.isConstant())
+            return ConstantFolding.bool(clause.intValue() == 0);
+
+        reg = this.newReg("i1");
+        emit(LLVMInstruction.binary(LLVMInstruction.Opcode.XOR, reg, clause, LLVMValue.constant("i1", "1"))
+                .withComment("apply logical not, using xor"));
+        return reg;
     }
 
     @Override
-    public String visitBracketExpression(JavaParser.BracketExpressionContext ctx) {
+    public LLVMValue visitBracketExpression(JavaParser.BracketExpressionContext ctx) {
         return ctx.expression().accept(this);
     }
 
-    public String arithmeticExpression(String left, String right, String op) {
-        String[] rightInfo = right.split(" ");
-        emit("\n\t;apply arithmetic expression\n"
-                + "\t" + this.state.newReg() + " = " + op + " " + left + ", " + rightInfo[1]);
-        return (op.equals("icmp slt") ? "i1" : "i32") + " %_" + (this.state.getRegCounter() - 1);
+    public LLVMValue arithmeticExpression(LLVMValue left, LLVMValue right, LLVMInstruction.Opcode op) {
+        /* both sides known already (e.g. literals), nothing to emit */
+        if (left.isConstant() && right.isConstant())
+            return ConstantFolding.foldBinary(op, left, right);
+
+        LLVMValue reg = this.newReg(op == LLVMInstruction.Opcode.ICMP_SLT ? "i1" : "i32");
+        emit(LLVMInstruction.binary(op, reg, left, right).withComment("apply arithmetic expression"));
+        return reg;
     }
 
-    public String getArrayElement(String id, String index) {
-        String comment = index.equals("0") ? ";get length of array at " + id.split(" ")[1] : ";lookup *(" + id.split(" ")[1] + " + " + index + ")";
+    public LLVMValue getArrayElement(LLVMValue id, LLVMValue index) {
+        String comment = index.isConstant() && index.intValue() == 0 ? "get length of array at " + id.getName() : "lookup *(" + id.getName() + " + " + index.getName() + ")";
+        LLVMValue elements = this.newReg("i32*"), element = this.newReg("i32*"), content = this.newReg("i32");
 
-        emit("\n\t" + comment + "\n"
-                + "\t" + this.state.newReg() + " = bitcast " + id + " to i32*\n"
-                + "\t" + this.state.newReg() + " = getelementptr i32, i32* %_" + (this.state.getRegCounter() - 2) + ", i32 " + index
-                + "\n\t" + this.state.newReg() + " = load i32, i32* %_" + (this.state.getRegCounter() - 2));
-        return "i32 %_" + (this.state.getRegCounter() - 1);
+        emit(LLVMInstruction.bitcast(elements, id).withComment(comment));
+        emit(LLVMInstruction.getElementPtr(element, "i32", elements, index));
+        emit(LLVMInstruction.load(content, element));
+        return content;
     }
 
 
-    public void checkArrayIndex(String id, String index, boolean loaded) {
-        String len;
+    public void checkArrayIndex(LLVMValue id, LLVMValue index, boolean loaded) {
+        LLVMValue len;
         String[] label = this.state.newLabel("oob");
+        LLVMBlock outOfBounds = new LLVMBlock(label[0]), withinBounds = new LLVMBlock(label[1]);
 
         // get length of array
         if (!loaded) {
-            emit("\n\t;load array\n\t" + this.state.newReg() + " = load i8*, i8** " + id);
-            len = this.getArrayElement("i8* %_" + (this.state.getRegCounter() - 1), "0").split(" ")[1];
+            LLVMValue array = this.newReg("i8*");
+            emit(LLVMInstruction.load(array, id).withComment("load array"));
+            len = this.getArrayElement(array, LLVMValue.constant(0));
         } else
-            len = this.getArrayElement(id, "0").split(" ")[1];
+            len = this.getArrayElement(id, LLVMValue.constant(0));
 
         // (index < 0) xor (index < array.length) ? then inBounds : else throw outOfBounds exception
-        emit("\n\t;make sure index \"" + index + "\" is within bounds\n\t" + this.state.newReg() + " = icmp slt i32 " + index + ", 0"
-                + "\n\t" + this.state.newReg() + " = icmp slt i32 " + index + ", " + len
-                + "\n\t" + this.state.newReg() + " = xor i1 %_" + (this.state.getRegCounter() - 3) + ", %_" + (this.state.getRegCounter() - 2)
-                + "\n\tbr i1 %_" + (this.state.getRegCounter() - 1) + ", label %" + label[1] + ", label %" + label[0] + "\n\n" + label[0]
-                + ":\n\n\tcall void @throw_oob()\n\tbr label %" + label[1] + "\n\n" + label[1] + ":");
+        LLVMValue negative = this.newReg("i1"), belowLength = this.newReg("i1"), inBounds = this.newReg("i1");
+        emit(LLVMInstruction.binary(LLVMInstruction.Opcode.ICMP_SLT, negative, index, LLVMValue.constant(0))
+                .withComment("make sure index \"" + index.getName() + "\" is within bounds"));
+        emit(LLVMInstruction.binary(LLVMInstruction.Opcode.ICMP_SLT, belowLength, index, len));
+        emit(LLVMInstruction.binary(LLVMInstruction.Opcode.XOR, inBounds, negative, belowLength));
+        emit(LLVMInstruction.br(inBounds, withinBounds, outOfBounds));
+
+        this.enterBlock(outOfBounds);
+        emit(LLVMInstruction.call(null, "void", LLVMValue.global("void ()*", "@throw_oob"), Collections.emptyList()));
+        emit(LLVMInstruction.br(withinBounds));
+
+        this.enterBlock(withinBounds);
     }
 
 
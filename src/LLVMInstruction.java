@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* a single llvm instruction; operands stay typed values until the module gets printed */
+public class LLVMInstruction {
+    enum Opcode {
+        ALLOCA("alloca"), LOAD("load"), STORE("store"), GETELEMENTPTR("getelementptr"), BITCAST("bitcast"),
+        ADD("add"), SUB("sub"), MUL("mul"), XOR("xor"), ICMP_SLT("icmp slt"), ICMP_ULE("icmp ule"),
+        CALL("call"), PHI("phi"), BR("br"), RET("ret");
+
+        private final String text;
+
+        Opcode(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    Opcode opcode;
+    LLVMValue result;               // null for instructions that do not define a register
+    List<LLVMValue> operands;
+    String type;                    // allocated type for alloca, source element type for getelementptr
+    List<LLVMBlock> targets;        // branch targets, or incoming blocks of a phi (parallel to operands)
+    String comment;
+
+    private LLVMInstruction(Opcode opcode, LLVMValue result, String type, LLVMValue... operands) {
+        this.opcode = opcode;
+        this.result = result;
+        this.type = type;
+        this.operands = new ArrayList<>(Arrays.asList(operands));
+        this.targets = new ArrayList<>();
+    }
+
+    public static LLVMInstruction alloca(LLVMValue result, String type) {
+        return new LLVMInstruction(Opcode.ALLOCA, result, type);
+    }
+
+    public static LLVMInstruction load(LLVMValue result, LLVMValue pointer) {
+        return new LLVMInstruction(Opcode.LOAD, result, null, pointer);
+    }
+
+    public static LLVMInstruction store(LLVMValue value, LLVMValue pointer) {
+        return new LLVMInstruction(Opcode.STORE, null, null, value, pointer);
+    }
+
+    /* first operand is the base pointer, the rest are indices */
+    public static LLVMInstruction getElementPtr(LLVMValue result, String elementType, LLVMValue pointer, LLVMValue... indices) {
+        LLVMInstruction instr = new LLVMInstruction(Opcode.GETELEMENTPTR, result, elementType, pointer);
+        instr.operands.addAll(Arrays.asList(indices));
+        return instr;
+    }
+
+    /* target type is the type of the result */
+    public static LLVMInstruction bitcast(LLVMValue result, LLVMValue value) {
+        return new LLVMInstruction(Opcode.BITCAST, result, null, value);
+    }
+
+    /* add, sub, mul, xor, icmp slt and icmp ule */
+    public static LLVMInstruction binary(Opcode opcode, LLVMValue result, LLVMValue left, LLVMValue right) {
+        return new LLVMInstruction(opcode, result, null, left, right);
+    }
+
+    /* first operand is the callee, the rest are the arguments; type holds the return type */
+    public static LLVMInstruction call(LLVMValue result, String returnType, LLVMValue callee, List<LLVMValue> args) {
+        LLVMInstruction instr = new LLVMInstruction(Opcode.CALL, result, returnType, callee);
+        instr.operands.addAll(args);
+        return instr;
+    }
+
+    public static LLVMInstruction phi(LLVMValue result) {
+        return new LLVMInstruction(Opcode.PHI, result, null);
+    }
+
+    public static LLVMInstruction br(LLVMBlock target) {
+        LLVMInstruction instr = new LLVMInstruction(Opcode.BR, null, null);
+        instr.targets.add(target);
+        return instr;
+    }
+
+    public static LLVMInstruction br(LLVMValue condition, LLVMBlock ifTrue, LLVMBlock ifFalse) {
+        LLVMInstruction instr = new LLVMInstruction(Opcode.BR, null, null, condition);
+        instr.targets.add(ifTrue);
+        instr.targets.add(ifFalse);
+        return instr;
+    }
+
+    /* a null value stands for ret void */
+    public static LLVMInstruction ret(LLVMValue value) {
+        return value == null ? new LLVMInstruction(Opcode.RET, null, null) : new LLVMInstruction(Opcode.RET, null, null, value);
+    }
+
+    /**
+     * A copy with operand and target lists of its own.
+     */
+    public LLVMInstruction copy() {
+        LLVMInstruction instr = new LLVMInstruction(this.opcode, this.result, this.type);
+        instr.operands.addAll(this.operands);
+        instr.targets.addAll(this.targets);
+        instr.comment = this.comment;
+        return instr;
+    }
+
+    /**
+     * Attach a comment, printed on the line above the instruction.
+     */
+    public LLVMInstruction withComment(String comment) {
+        this.comment = comment;
+        return this;
+    }
+
+    /**
+     * Add an incoming (value, block) pair to a phi.
+     */
+    public void addIncoming(LLVMValue value, LLVMBlock from) {
+        this.operands.add(value);
+        this.targets.add(from);
+    }
+
+    public boolean isTerminator() {
+        return this.opcode == Opcode.BR || this.opcode == Opcode.RET;
+    }
+
+    /**
+     * Whether executing the instruction does anything besides defining its result.
+     */
+    public boolean hasSideEffects() {
+        return this.opcode == Opcode.STORE || this.opcode == Opcode.CALL || this.isTerminator();
+    }
+
+    public LLVMValue getResult() {
+        return result;
+    }
+
+    public LLVMValue getOperand(int i) {
+        return this.operands.get(i);
+    }
+
+    /**
+     * Replace every use of a value among the operands.
+     */
+    public void replaceUses(LLVMValue from, LLVMValue to) {
+        for (int i = 0; i < this.operands.size(); i++)
+            if (this.operands.get(i).equals(from))
+                this.operands.set(i, to);
+    }
+
+    private String joinOperands(int from) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < this.operands.size(); i++) {
+            if (i > from)
+                sb.append(", ");
+            sb.append(this.operands.get(i));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        String def = this.result == null ? "" : this.result.getName() + " = ";
+
+        switch (this.opcode) {
+            case ALLOCA:
+                return def + "alloca " + this.type;
+            case LOAD:
+                return def + "load " + this.result.getType() + ", " + this.operands.get(0);
+            case STORE:
+                return "store " + this.operands.get(0) + ", " + this.operands.get(1);
+            case GETELEMENTPTR:
+                return def + "getelementptr " + this.type + ", " + this.joinOperands(0);
+            case BITCAST:
+                return def + "bitcast " + this.operands.get(0) + " to " + this.result.getType();
+            case CALL:
+                return def + "call " + this.type + " " + this.operands.get(0).getName() + "(" + this.joinOperands(1) + ")";
+            case PHI: {
+                StringBuilder sb = new StringBuilder(def + "phi " + this.result.getType() + " ");
+                for (int i = 0; i < this.operands.size(); i++)
+                    sb.append(i > 0 ? ", " : "").append("[").append(this.operands.get(i).getName()).append(", %").append(this.targets.get(i).getLabel()).append("]");
+                return sb.toString();
+            }
+            case BR:
+                if (this.operands.isEmpty())
+                    return "br label %" + this.targets.get(0).getLabel();
+                return "br " + this.operands.get(0) + ", label %" + this.targets.get(0).getLabel() + ", label %" + this.targets.get(1).getLabel();
+            case RET:
+                return this.operands.isEmpty() ? "ret void" : "ret " + this.operands.get(0);
+            default:
+                return def + this.opcode.getText() + " " + this.operands.get(0) + ", " + this.operands.get(1).getName();
+        }
+    }
+}
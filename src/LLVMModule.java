@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* the whole translation unit: global declarations (vTables, runtime helpers) followed by the generated functions */
+public class LLVMModule {
+    List<String> globals;
+    List<LLVMFunction> functions;
+    private final Map<String, Integer> named;   // records of form: (symbol, index of its definition in globals)
+    Map<String, String[]> vTables;              // records of form: (class_name, vTable entries by method offset)
+    Map<String, int[]> structOffsets;           // records of form: (struct type, byte offset of each element)
+
+    LLVMModule() {
+        this.globals = new ArrayList<>();
+        this.functions = new ArrayList<>();
+        this.named = new HashMap<>();
+        this.structOffsets = new HashMap<>();
+    }
+
+    /**
+     * Add a global definition or declaration, printed verbatim ahead of all functions.
+     */
+    public void addGlobal(String text) {
+        this.globals.add(text);
+    }
+
+    /**
+     * Add the definition of symbol (e.g. @.A_vtable), it can be replaced or removed later on.
+     */
+    public void addGlobal(String symbol, String text) {
+        this.named.put(symbol, this.globals.size());
+        this.globals.add(text);
+    }
+
+    public void replaceGlobal(String symbol, String text) {
+        Integer index = this.named.get(symbol);
+        if (index != null)
+            this.globals.set(index, text);
+    }
+
+    public void removeGlobal(String symbol) {
+        this.replaceGlobal(symbol, null);
+    }
+
+    /**
+     * A copy whose functions can be optimized without touching this module; vTables and struct offsets are shared,
+     * passes only ever replace them.
+     */
+    public LLVMModule copy() {
+        LLVMModule copy = new LLVMModule();
+        copy.globals.addAll(this.globals);
+        copy.named.putAll(this.named);
+        copy.vTables = this.vTables;
+        copy.structOffsets = this.structOffsets;
+        for (LLVMFunction function : this.functions)
+            copy.functions.add(function.copy());
+        return copy;
+    }
+
+    public void add(LLVMFunction function) {
+        this.functions.add(function);
+    }
+
+    /**
+     * Print the textual form of the module, this is the only place IR text gets produced.
+     */
+    public void print(Writer out) throws IOException {
+        for (String global : this.globals) {
+            if (global == null)
+                continue;
+            out.write(global);
+            out.write('\n');
+        }
+        out.write('\n');
+        for (LLVMFunction function : this.functions)
+            function.print(out);
+    }
+}
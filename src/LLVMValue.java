@@ -0,0 +1,91 @@
+/* an operand of an instruction: a virtual register, a global symbol or an immediate constant, kept apart from its llvm type */
+public class LLVMValue {
+    enum Kind { REGISTER, GLOBAL, CONSTANT }
+
+    private final Kind kind;
+    private final String type;
+    private final String name;
+
+    private LLVMValue(Kind kind, String type, String name) {
+        this.kind = kind;
+        this.type = type;
+        this.name = name;
+    }
+
+    /**
+     * A virtual register such as %_5 or %this.
+     */
+    public static LLVMValue register(String type, String name) {
+        return new LLVMValue(Kind.REGISTER, type, name);
+    }
+
+    /**
+     * A global symbol such as @print_int or @.A_vtable.
+     */
+    public static LLVMValue global(String type, String name) {
+        return new LLVMValue(Kind.GLOBAL, type, name);
+    }
+
+    /**
+     * An immediate constant, literal is printed as is (e.g. 5, true).
+     */
+    public static LLVMValue constant(String type, String literal) {
+        return new LLVMValue(Kind.CONSTANT, type, literal);
+    }
+
+    public static LLVMValue constant(int value) {
+        return new LLVMValue(Kind.CONSTANT, "i32", String.valueOf(value));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isConstant() {
+        return this.kind == Kind.CONSTANT;
+    }
+
+    public boolean isRegister() {
+        return this.kind == Kind.REGISTER;
+    }
+
+    /**
+     * Numeric value of an i32 or i1 constant.
+     */
+    public int intValue() {
+        if ("true".equals(this.name))
+            return 1;
+        if ("false".equals(this.name))
+            return 0;
+        return Integer.parseInt(this.name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof LLVMValue))
+            return false;
+        LLVMValue other = (LLVMValue) o;
+        return this.kind == other.kind && this.name.equals(other.name) && this.type.equals(other.type);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.name.hashCode() * 31 + this.type.hashCode();
+    }
+
+    /* operand form, e.g. "i32 %_5" */
+    @Override
+    public String toString() {
+        return this.type + " " + this.name;
+    }
+}
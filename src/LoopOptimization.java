@@ -0,0 +1,284 @@
+import java.util.*;
+
+/* loop invariant code motion and strength reduction. Loops are found as back edges, a branch to a block dominating
+   the one it leaves: the while_N header visitWhileStatement emits is entered from outside and from the end of its
+   do_N body, done_N is where it exits (inlined copies are found the same way under their inline_N prefix). Inner
+   loops go first, ordered by how many loops contain their header, so what they hoist can leave the outer loop too.
+   For each loop
+        - a preheader is found (the block before the loop, if the loop is all it goes to) or made
+        - instructions computing the same value on every iteration move to the preheader, in order: arithmetic,
+          getelementptr and bitcast on values defined outside the loop, and loads nothing in the loop may write to
+          (no store of their type, no call to a method; array lengths never change) that are either executed on
+          every iteration ahead of any bounds check, as in the condition, or cannot fault, as fields of this. An
+          element load past its check is only valid because the check passed, in the preheader it would run first
+        - i * k, with k invariant and i an induction variable stepping by a constant c, becomes a variable of its
+          own starting at init * k and stepping by c * k: an add per iteration instead of a mul
+   Works on ssa form, so runs after mem2reg */
+public class LoopOptimization {
+    private final LLVMFunction function;
+    private final DominatorTree dom;
+    private final Map<LLVMValue, LLVMInstruction> defs;
+    private final LLVMBlock header;
+    private final Set<LLVMBlock> body;          // the blocks of the loop, header included
+    private final List<LLVMBlock> latches;      // blocks branching back to the header
+    private final Map<LLVMValue, LLVMBlock> defBlocks;
+    private LLVMBlock preheader;
+
+    private LoopOptimization(LLVMFunction function, LLVMBlock header) {
+        this.function = function;
+        this.dom = new DominatorTree(function);
+        this.defs = function.getDefinitions();
+        this.header = header;
+        this.body = new LinkedHashSet<>();
+        this.latches = new ArrayList<>();
+        this.defBlocks = new HashMap<>();
+
+        for (LLVMBlock pred : this.dom.predecessors.get(header))
+            if (this.dom.dominates(header, pred))
+                this.latches.add(pred);
+        this.body.addAll(body(this.dom, header));
+        for (LLVMBlock block : this.body)
+            for (LLVMInstruction instr : block.instructions)
+                if (instr.result != null)
+                    this.defBlocks.put(instr.result, block);
+    }
+
+    public static void run(LLVMFunction function) {
+        function.removeUnreachableBlocks();
+        DominatorTree dom = new DominatorTree(function);
+        List<LLVMBlock> headers = new ArrayList<>();
+        for (LLVMBlock block : dom.order)
+            for (LLVMBlock succ : block.getSuccessors())
+                if (dom.dominates(succ, block) && !headers.contains(succ))
+                    headers.add(succ);
+
+        /* a loop nested in another has its header in the body of the other as well */
+        Map<LLVMBlock, Integer> depth = new HashMap<>();
+        for (LLVMBlock header : headers)
+            for (LLVMBlock block : body(dom, header))
+                if (headers.contains(block))
+                    depth.merge(block, 1, Integer::sum);
+        headers.sort((a, b) -> depth.get(b) - depth.get(a));
+
+        for (LLVMBlock header : headers) {
+            LoopOptimization loop = new LoopOptimization(function, header);
+            if (loop.findPreheader()) {
+                loop.hoist();
+                loop.reduce();
+            }
+        }
+    }
+
+    /* the blocks of the loop of header: those reaching one of its back edges without passing the header */
+    private static Set<LLVMBlock> body(DominatorTree dom, LLVMBlock header) {
+        Set<LLVMBlock> body = new LinkedHashSet<>();
+        Deque<LLVMBlock> work = new ArrayDeque<>();
+        body.add(header);
+        for (LLVMBlock pred : dom.predecessors.get(header))
+            if (dom.dominates(header, pred))
+                work.push(pred);
+        while (!work.isEmpty()) {
+            LLVMBlock block = work.pop();
+            if (body.add(block))
+                for (LLVMBlock pred : dom.predecessors.get(block))
+                    work.push(pred);
+        }
+        return body;
+    }
+
+    /* the loop is entered from a single block outside it; when that block branches elsewhere too, an empty block
+       is put on the edge. Return false if there is no single such block */
+    private boolean findPreheader() {
+        LLVMBlock outside = null;
+        for (LLVMBlock pred : this.dom.predecessors.get(this.header)) {
+            if (this.body.contains(pred))
+                continue;
+            if (outside != null)
+                return false;
+            outside = pred;
+        }
+        if (outside == null)
+            return false;
+        if (outside.getSuccessors().size() == 1) {
+            this.preheader = outside;
+            return true;
+        }
+
+        this.preheader = new LLVMBlock(this.header.getLabel() + ".preheader");
+        this.preheader.add(LLVMInstruction.br(this.header));
+        Collections.replaceAll(outside.getTerminator().targets, this.header, this.preheader);
+        for (LLVMInstruction instr : this.header.instructions)
+            if (instr.opcode == LLVMInstruction.Opcode.PHI)
+                Collections.replaceAll(instr.targets, outside, this.preheader);
+        this.function.blocks.add(this.function.blocks.indexOf(this.header), this.preheader);
+        return true;
+    }
+
+    private void hoist() {
+        Set<String> stored = new HashSet<>();     // types of the values stored in the loop
+        boolean calls = false;
+        List<LLVMBlock> exiting = new ArrayList<>(), checks = new ArrayList<>();
+        for (LLVMBlock block : this.body) {
+            for (LLVMInstruction instr : block.instructions) {
+                if (instr.opcode == LLVMInstruction.Opcode.STORE)
+                    stored.add(instr.operands.get(0).getType());
+                if (instr.opcode == LLVMInstruction.Opcode.CALL && !ValueNumbering.runtime.contains(instr.operands.get(0).getName()))
+                    calls = true;
+            }
+            LLVMInstruction term = block.getTerminator();
+            if (term == null || term.opcode == LLVMInstruction.Opcode.RET || !this.body.containsAll(block.getSuccessors()))
+                exiting.add(block);
+            for (LLVMBlock succ : block.getSuccessors())
+                if (BoundsCheckElimination.throwsOutOfBounds(succ))
+                    checks.add(block);
+        }
+
+        /* in reverse postorder, operands defined in the loop are seen (and possibly hoisted) before their uses */
+        for (LLVMBlock block : this.dom.order) {
+            if (!this.body.contains(block))
+                continue;
+            boolean everyIteration = true;
+            for (LLVMBlock exit : exiting)
+                everyIteration &= this.dom.dominates(block, exit);
+            for (LLVMBlock check : checks)
+                everyIteration &= check == block || !this.dom.dominates(check, block);
+
+            Iterator<LLVMInstruction> it = block.instructions.iterator();
+            while (it.hasNext()) {
+                LLVMInstruction instr = it.next();
+                if (!this.isInvariant(instr, stored, calls, everyIteration))
+                    continue;
+                it.remove();
+                this.addToPreheader(instr);
+                this.defBlocks.remove(instr.result);
+            }
+        }
+    }
+
+    private boolean isInvariant(LLVMInstruction instr, Set<String> stored, boolean calls, boolean everyIteration) {
+        switch (instr.opcode) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case XOR:
+            case ICMP_SLT:
+            case ICMP_ULE:
+            case GETELEMENTPTR:
+            case BITCAST:
+                break;
+            case LOAD:
+                if ((stored.contains(instr.result.getType()) || calls) && !this.isLength(instr.operands.get(0)))
+                    return false;
+                if (!everyIteration && !this.cannotFault(instr.operands.get(0)))
+                    return false;
+                break;
+            default:
+                return false;
+        }
+        for (LLVMValue operand : instr.operands)
+            if (!this.isInvariant(operand))
+                return false;
+        return true;
+    }
+
+    private boolean isInvariant(LLVMValue value) {
+        return !value.isRegister() || !this.defBlocks.containsKey(value);
+    }
+
+    /* "getelementptr i32, i32* %array, i32 0", where arrays keep their length */
+    private boolean isLength(LLVMValue pointer) {
+        LLVMInstruction gep = this.defs.get(pointer);
+        return gep != null && gep.opcode == LLVMInstruction.Opcode.GETELEMENTPTR && "i32".equals(gep.type)
+                && gep.operands.size() == 2 && gep.operands.get(1).isConstant() && gep.operands.get(1).intValue() == 0;
+    }
+
+    /* pointer is a constant offset into this or into stack space, never null */
+    private boolean cannotFault(LLVMValue pointer) {
+        while (true) {
+            if (pointer.isRegister() && "%this".equals(pointer.getName()))
+                return true;
+            LLVMInstruction def = this.defs.get(pointer);
+            if (def == null)
+                return false;
+            switch (def.opcode) {
+                case ALLOCA:
+                    return true;
+                case BITCAST:
+                    break;
+                case GETELEMENTPTR:
+                    for (int i = 1; i < def.operands.size(); i++)
+                        if (!def.operands.get(i).isConstant())
+                            return false;
+                    break;
+                default:
+                    return false;
+            }
+            pointer = def.operands.get(0);
+        }
+    }
+
+    private void addToPreheader(LLVMInstruction instr) {
+        this.preheader.instructions.add(this.preheader.instructions.size() - 1, instr);
+    }
+
+    /* an instruction computing op(left, right) in the preheader, or what it folds to */
+    private LLVMValue addToPreheader(LLVMInstruction.Opcode op, String name, LLVMValue left, LLVMValue right) {
+        LLVMValue folded = ConstantFolding.foldBinary(op, left, right);
+        if (folded != null)
+            return folded;
+        LLVMValue result = LLVMValue.register("i32", name);
+        this.addToPreheader(LLVMInstruction.binary(op, result, left, right));
+        return result;
+    }
+
+    private void reduce() {
+        if (this.latches.size() != 1)
+            return;
+        LLVMBlock latch = this.latches.get(0);
+
+        List<LLVMInstruction> muls = new ArrayList<>();
+        for (LLVMBlock block : this.body)
+            for (LLVMInstruction instr : block.instructions)
+                if (instr.opcode == LLVMInstruction.Opcode.MUL)
+                    muls.add(instr);
+
+        for (LLVMInstruction mul : muls) {
+            int at = this.step(mul.operands.get(0)) != null ? 0 : 1;
+            LLVMValue i = mul.operands.get(at), k = mul.operands.get(1 - at), c = this.step(i);
+            if (c == null || !this.isInvariant(k))
+                continue;
+
+            LLVMInstruction phi = this.defs.get(i);
+            LLVMValue init = phi.operands.get(phi.targets.indexOf(this.preheader)), name = mul.result;
+            LLVMValue start = this.addToPreheader(LLVMInstruction.Opcode.MUL, name.getName() + ".start", init, k);
+            LLVMValue step = this.addToPreheader(LLVMInstruction.Opcode.MUL, name.getName() + ".step", c, k);
+            LLVMValue reduced = LLVMValue.register("i32", name.getName() + ".sr"), next = LLVMValue.register("i32", name.getName() + ".next");
+
+            LLVMInstruction reducedPhi = LLVMInstruction.phi(reduced).withComment("strength reduced " + i.getName() + " * " + k.getName());
+            reducedPhi.addIncoming(start, this.preheader);
+            reducedPhi.addIncoming(next, latch);
+            this.header.instructions.add(0, reducedPhi);
+            latch.instructions.add(latch.instructions.size() - 1, LLVMInstruction.binary(LLVMInstruction.Opcode.ADD, next, reduced, step));
+
+            this.defBlocks.get(mul.result).instructions.remove(mul);
+            this.function.replaceAllUses(mul.result, reduced);
+        }
+    }
+
+    /* if value is an induction variable, a phi of the header getting i + c from the latch, return c, else null */
+    private LLVMValue step(LLVMValue value) {
+        LLVMInstruction phi = this.defs.get(value);
+        if (phi == null || phi.opcode != LLVMInstruction.Opcode.PHI || !this.header.instructions.contains(phi) || phi.operands.size() != 2)
+            return null;
+        int fromLatch = phi.targets.indexOf(this.latches.get(0));
+        if (fromLatch < 0 || phi.targets.indexOf(this.preheader) < 0)
+            return null;
+
+        LLVMInstruction update = this.defs.get(phi.operands.get(fromLatch));
+        if (update == null || (update.opcode != LLVMInstruction.Opcode.ADD && update.opcode != LLVMInstruction.Opcode.SUB)
+                || !update.operands.get(0).equals(value) || !update.operands.get(1).isConstant())
+            return null;
+        int c = update.operands.get(1).intValue();
+        return LLVMValue.constant(update.opcode == LLVMInstruction.Opcode.ADD ? c : -c);
+    }
+}
@@ -1,55 +1,259 @@
-import javafx.util.Pair;
 import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Main {
+    /* lexer and parser instances are kept per thread and reused, so repeated compilations (--jobs, --server) skip their setup */
+    private static final ThreadLocal<JavaLexer> lexers = ThreadLocal.withInitial(() -> new JavaLexer(null));
+    private static final ThreadLocal<JavaParser> parsers = ThreadLocal.withInitial(() -> new JavaParser(null));
+
     public static void main(String[] args) {
-        boolean displayOffsets = Arrays.asList(args).contains("--offsets");
+        Options options = new Options();
+        List<String> files = new ArrayList<>();
+        int jobs = 1;
 
         for (String arg : args) {
-            if (arg.equals("--offsets"))
+            if (arg.equals("--server"))
+                runServer(-1);
+            else if (arg.startsWith("--server=")) {
+                int port = port(arg.substring("--server=".length()));
+                if (port < 0) {
+                    System.err.println("Invalid option " + arg + ". Use --server or --server=PORT, PORT a number from 0 to 65535.");
+                    System.exit(1);
+                }
+                runServer(port);
+            }
+            else
                 continue;
+            return;
+        }
 
-            try (FileInputStream fin = new FileInputStream(arg)) {
-                CharStream input = CharStreams.fromStream(fin);
-                JavaLexer lexer = new JavaLexer(input);
-                CommonTokenStream tokens = new CommonTokenStream(lexer);
-                JavaParser parser = new JavaParser(tokens);
+        for (String arg : args) {
+            if (options.parse(arg))
+                continue;
+            else if (arg.equals("--jobs"))
+                jobs = Runtime.getRuntime().availableProcessors();
+            else if (arg.startsWith("--jobs=")) {
+                jobs = jobs(arg.substring("--jobs=".length()));
+                if (jobs < 1) {
+                    System.err.println("Invalid option " + arg + ". Use --jobs or --jobs=N, N a positive number of threads.");
+                    System.exit(1);
+                }
+            }
+            else
+                files.add(arg);
+        }
 
-                ParseTree tree = parser.goal();
-                FirstVisitor v0 = new FirstVisitor();
-                v0.visit(tree);
+        /* each file gets its own visitors and State, so files can be compiled on a bounded pool of workers;
+           reports are gathered per file and printed in the order the files were given */
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, Math.max(1, files.size())));
+        List<Future<String>> reports = new ArrayList<>();
+        for (String file : files)
+            reports.add(pool.submit(() -> compile(file, options)));
+        pool.shutdown();
 
-                if (displayOffsets) {
-                    System.out.println("Offsets\n-------");
+        /* with --stdout, stdout carries the ir alone */
+        PrintStream console = options.toStdout ? System.err : System.out;
+        boolean failed = false;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                console.print(reports.get(i).get());
+            } catch (ExecutionException e) {
+                System.err.println(files.get(i) + ": " + e.getCause());
+                failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
 
-                    for (Map.Entry<String, ClassData> entry : v0.classes.entrySet()) {
-                        String name = entry.getKey();
-                        System.out.println("Class: " + name);
+        /* json reports are read by programs, keep them clean */
+        if (!options.displayOffsets && !"json".equals(options.stats))
+            console.println("To view field and method offsets for each class rerun with --offsets");
 
-                        System.out.println("\n\tFields\n\t------\n\t\tthis: 0");
-                        for (Map.Entry<String, Pair<String, Integer>> var : entry.getValue().vars.entrySet())
-                            System.out.println("\t\t" + name + "." + var.getKey() + ": " + var.getValue().getValue());
+        /* the rest of the batch still compiles, but a build running us has to see the failure */
+        if (failed)
+            System.exit(1);
+    }
 
-                        System.out.println("\n\tMethods\n\t-------");
-                        for (Map.Entry<String, MethodData> func : entry.getValue().methods.entrySet())
-                            System.out.println("\t\t" + func.getValue().className + "." + func.getKey() + ": " + func.getValue().offset);
-                    }
+    /* N of --jobs=N, 0 if it is not a number */
+    private static int jobs(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /* PORT of --server=PORT, -1 if it is not a port number (0 lets the system pick one) */
+    private static int port(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            return port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* --server reads requests from stdin (port -1), --server=PORT accepts them on a loopback socket */
+    private static void runServer(int port) {
+        try {
+            if (port < 0)
+                CompileServer.serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(System.out));
+            else
+                CompileServer.listen(port);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* two-stage parse: SLL prediction ignores the parser call stack, which makes it much cheaper and enough for
+       nearly every input. If it fails, on a syntax error or a decision only full context can make, the tokens are
+       parsed again with LL, which also reports the actual errors. Either way the DFA built by prediction is
+       static in JavaParser, so every file of a batch (--jobs, --server) starts from what earlier ones learned */
+    static JavaParser.GoalContext parse(JavaParser parser, CommonTokenStream tokens) {
+        parser.setTokenStream(tokens);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        try {
+            return parser.goal();
+        } catch (ParseCancellationException e) {
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.goal();
+        }
+    }
+
+    /* the phases of compile, shared with the benchmarks so they measure what the compiler actually runs */
+
+    /**
+     * Collect the classes of a parsed file, laid out as structs unless layout is disabled.
+     */
+    static FirstVisitor collect(JavaParser.GoalContext tree, Options options) {
+        FirstVisitor v0 = new FirstVisitor();
+        v0.visit(tree);
+        if (options.optimizer.isEnabled("layout"))
+            ClassData.layOut(v0.classes);
+        return v0;
+    }
+
+    /**
+     * A generator for the classes collected by v0, set up as options say.
+     */
+    static LLVMGenerator generator(FirstVisitor v0, Options options) {
+        ClassHierarchy hierarchy = options.optimizer.isEnabled("devirtualize") ? new ClassHierarchy(v0.classes) : null;
+        LLVMGenerator v1 = new LLVMGenerator(v0.classes, v0.receiverTypes, v0.types, hierarchy, options);
+        if (options.parallelMethods)
+            v1.workers = ForkJoinPool.commonPool();
+        return v1;
+    }
+
+    /**
+     * Run the optimization passes over a generated module, storing its methods in cache (if not null) on the way.
+     */
+    static void optimize(LLVMModule module, Map<String, ClassData> classes, Options options, CompilationCache cache) throws IOException {
+        options.optimizer.run(module, options.parallelMethods);
+        if (cache != null)
+            cache.store(module, classes);
+        /* after the cache took every method, an edit may well need those dead in this version */
+        if (options.optimizer.isEnabled("reachability"))
+            Reachability.run(module, classes);
+    }
+
+    /* compile a single .java file into a .ll file next to it, return what should be displayed for it */
+    static String compile(String arg, Options options) throws IOException {
+        StringBuilder report = new StringBuilder();
+        CompileStats stats = options.stats == null ? null : new CompileStats(arg);
+
+        try (FileInputStream fin = new FileInputStream(arg)) {
+            CharStream input = CharStreams.fromStream(fin);
+            JavaLexer lexer = lexers.get();
+            lexer.setInputStream(input);
+            CommonTokenStream tokens = new CommonTokenStream(lexer);
+            if (stats != null) {
+                /* the parser would pull tokens as it goes, lex them all first to time both apart */
+                tokens.fill();
+                stats.lap("lex");
+            }
+            JavaParser.GoalContext tree = parse(parsers.get(), tokens);
+            if (stats != null)
+                stats.lap("parse");
+            FirstVisitor v0 = collect(tree, options);
+            if (stats != null) {
+                stats.lap("first pass");
+                stats.countVTables(v0.classes);
+            }
+
+            if (options.displayOffsets) {
+                report.append("Offsets\n-------\n");
+
+                for (Map.Entry<String, ClassData> entry : v0.classes.entrySet()) {
+                    String name = entry.getKey();
+                    report.append("Class: ").append(name).append("\n");
+
+                    report.append("\n\tFields\n\t------\n\t\tthis: 0\n");
+                    SymbolTable vars = entry.getValue().vars;
+                    for (int i = 0; i < vars.size(); i++)
+                        report.append("\t\t").append(name).append(".").append(vars.name(i)).append(": ").append(vars.value(i)).append("\n");
+
+                    if (entry.getValue().structFields != null)
+                        report.append("\t\tsize: ").append(entry.getValue().size).append(" (").append(entry.getValue().paddingSaved).append(" bytes of padding saved)\n");
+
+                    report.append("\n\tMethods\n\t-------\n");
+                    for (Map.Entry<String, MethodData> func : entry.getValue().methods.entrySet())
+                        report.append("\t\t").append(func.getValue().className).append(".").append(func.getKey()).append(": ").append(func.getValue().offset).append("\n");
                 }
+            }
+
+            LLVMGenerator v1 = generator(v0, options);
+            if (stats != null)
+                v1.setStats(stats);
+
+            /* classes unchanged since the last compilation keep their generated and optimized methods */
+            CompilationCache cache = null;
+            if (options.incremental) {
+                cache = CompilationCache.forSource(arg);
+                cache.computeKeys(tree, tokens, v0.classes, v0.types, options);
+                v1.cached = cache.loadAll();
+            }
+
+            v1.visit(tree);
+            if (stats != null) {
+                stats.lap("generate");
+                stats.count(v1.module, false);
+            }
+            optimize(v1.module, v0.classes, options, cache);
+            if (stats != null) {
+                stats.lap("optimize");
+                stats.count(v1.module, true);
+            }
 
-                try (BufferedWriter fout = new BufferedWriter(new FileWriter(arg.replace(".java", ".ll")))) {
-                    LLVMGenerator v1 = new LLVMGenerator(fout, v0.classes, v0.messageQueue);
-                    v1.visit(tree);
+            if (options.toStdout) {
+                /* one module at a time, files compiled with --jobs must not interleave */
+                synchronized (System.out) {
+                    System.out.flush();
+                    try (IROutput out = IROutput.toStdout()) {
+                        v1.module.print(out);
+                    }
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            } else {
+                try (IROutput out = IROutput.toFile(Paths.get(arg.replace(".java", ".ll")))) {
+                    v1.module.print(out);
+                }
+            }
+            if (stats != null) {
+                stats.lap("write");
+                report.append("json".equals(options.stats) ? stats.toJson() : stats.toText());
             }
         }
-
-        if (!displayOffsets)
-            System.out.println("To view field and method offsets for each class rerun with --offsets");
+        return report.toString();
     }
 }
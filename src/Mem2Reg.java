@@ -0,0 +1,178 @@
+import java.util.*;
+
+/* promote the stack slots of scalar locals and parameters to ssa registers: phis are placed at the iterated
+   dominance frontier of the blocks storing to a slot, then a walk down the dominator tree renames every load
+   to the value reaching it, after which the alloca and all its loads and stores are gone */
+public class Mem2Reg {
+
+    public static void run(LLVMFunction function) {
+        List<LLVMInstruction> allocas = promotable(function);
+        if (allocas.isEmpty())
+            return;
+
+        function.removeUnreachableBlocks();
+        DominatorTree dom = new DominatorTree(function);
+
+        Map<LLVMValue, Integer> slots = new HashMap<>();
+        for (int i = 0; i < allocas.size(); i++)
+            slots.put(allocas.get(i).result, i);
+
+        Map<LLVMInstruction, Integer> phis = insertPhis(function, dom, allocas, slots);
+        Map<LLVMValue, LLVMValue> replacement = new HashMap<>();
+        Set<LLVMInstruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+        dead.addAll(allocas);
+        rename(dom, allocas, slots, phis, replacement, dead);
+
+        /* drop the memory operations and point every use of a load at the value it would have read */
+        for (LLVMBlock block : function.blocks) {
+            block.instructions.removeIf(dead::contains);
+            for (LLVMInstruction instr : block.instructions)
+                for (int i = 0; i < instr.operands.size(); i++)
+                    instr.operands.set(i, resolve(replacement, instr.operands.get(i)));
+        }
+        removeDeadPhis(function, phis.keySet());
+    }
+
+    /* allocas in the entry block whose address is only ever loaded from or stored to */
+    private static List<LLVMInstruction> promotable(LLVMFunction function) {
+        Map<LLVMValue, LLVMInstruction> candidates = new LinkedHashMap<>();
+        for (LLVMInstruction instr : function.getEntry().instructions)
+            if (instr.opcode == LLVMInstruction.Opcode.ALLOCA)
+                candidates.put(instr.result, instr);
+
+        for (LLVMBlock block : function.blocks) {
+            for (LLVMInstruction instr : block.instructions) {
+                for (int i = 0; i < instr.operands.size(); i++) {
+                    LLVMValue operand = instr.operands.get(i);
+                    if (!candidates.containsKey(operand))
+                        continue;
+                    boolean isAddress = (instr.opcode == LLVMInstruction.Opcode.LOAD && i == 0)
+                            || (instr.opcode == LLVMInstruction.Opcode.STORE && i == 1);
+                    if (!isAddress)
+                        candidates.remove(operand);
+                }
+            }
+        }
+        return new ArrayList<>(candidates.values());
+    }
+
+    private static Map<LLVMInstruction, Integer> insertPhis(LLVMFunction function, DominatorTree dom,
+                                                            List<LLVMInstruction> allocas, Map<LLVMValue, Integer> slots) {
+        Map<LLVMInstruction, Integer> phis = new IdentityHashMap<>();
+        List<Set<LLVMBlock>> defBlocks = new ArrayList<>();
+        for (int i = 0; i < allocas.size(); i++)
+            defBlocks.add(new LinkedHashSet<>());
+
+        for (LLVMBlock block : function.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                if (instr.opcode == LLVMInstruction.Opcode.STORE && slots.containsKey(instr.operands.get(1)))
+                    defBlocks.get(slots.get(instr.operands.get(1))).add(block);
+
+        for (int i = 0; i < allocas.size(); i++) {
+            String type = allocas.get(i).type, name = allocas.get(i).result.getName();
+            Set<LLVMBlock> hasPhi = new HashSet<>();
+            Deque<LLVMBlock> work = new ArrayDeque<>(defBlocks.get(i));
+
+            while (!work.isEmpty()) {
+                for (LLVMBlock join : dom.getFrontier(work.pop())) {
+                    if (!hasPhi.add(join))
+                        continue;
+                    LLVMInstruction phi = LLVMInstruction.phi(LLVMValue.register(type, name + "." + join.getLabel()));
+                    join.instructions.add(0, phi);
+                    phis.put(phi, i);
+                    if (!defBlocks.get(i).contains(join))
+                        work.push(join);
+                }
+            }
+        }
+        return phis;
+    }
+
+    /* walk the dominator tree keeping, for each slot, a stack of the values stored to it so far */
+    private static void rename(DominatorTree dom, List<LLVMInstruction> allocas, Map<LLVMValue, Integer> slots,
+                               Map<LLVMInstruction, Integer> phis, Map<LLVMValue, LLVMValue> replacement, Set<LLVMInstruction> dead) {
+        List<Deque<LLVMValue>> current = new ArrayList<>();
+        for (LLVMInstruction alloca : allocas) {
+            Deque<LLVMValue> stack = new ArrayDeque<>();
+            stack.push(zero(alloca.type));      // reading a slot before any store gives the default value
+            current.add(stack);
+        }
+
+        Deque<LLVMBlock> blocks = new ArrayDeque<>();
+        Deque<List<Integer>> pushed = new LinkedList<>();      // null marks the first visit of a block
+        blocks.push(dom.order.get(0));
+        pushed.push(null);
+
+        while (!blocks.isEmpty()) {
+            LLVMBlock block = blocks.pop();
+            List<Integer> defined = pushed.pop();
+
+            /* second visit: leaving the subtree of this block, forget what it stored */
+            if (defined != null) {
+                for (int slot : defined)
+                    current.get(slot).pop();
+                continue;
+            }
+
+            defined = new ArrayList<>();
+            for (LLVMInstruction instr : block.instructions) {
+                Integer slot;
+                if (instr.opcode == LLVMInstruction.Opcode.PHI && (slot = phis.get(instr)) != null) {
+                    current.get(slot).push(instr.result);
+                    defined.add(slot);
+                } else if (instr.opcode == LLVMInstruction.Opcode.LOAD && (slot = slots.get(instr.operands.get(0))) != null) {
+                    replacement.put(instr.result, current.get(slot).peek());
+                    dead.add(instr);
+                } else if (instr.opcode == LLVMInstruction.Opcode.STORE && (slot = slots.get(instr.operands.get(1))) != null) {
+                    current.get(slot).push(resolve(replacement, instr.operands.get(0)));
+                    defined.add(slot);
+                    dead.add(instr);
+                }
+            }
+
+            for (LLVMBlock succ : block.getSuccessors()) {
+                for (LLVMInstruction instr : succ.instructions) {
+                    Integer slot = phis.get(instr);
+                    if (slot != null)
+                        instr.addIncoming(current.get(slot).peek(), block);
+                }
+            }
+
+            blocks.push(block);
+            pushed.push(defined);
+            for (LLVMBlock child : dom.children.get(block)) {
+                blocks.push(child);
+                pushed.push(null);
+            }
+        }
+    }
+
+    private static LLVMValue resolve(Map<LLVMValue, LLVMValue> replacement, LLVMValue value) {
+        LLVMValue next;
+        while ((next = replacement.get(value)) != null)
+            value = next;
+        return value;
+    }
+
+    static LLVMValue zero(String type) {
+        return LLVMValue.constant(type, type.endsWith("*") ? "null" : "0");
+    }
+
+    /* phis nobody reads (other than the phis themselves) are left over from minimal ssa construction */
+    private static void removeDeadPhis(LLVMFunction function, Set<LLVMInstruction> inserted) {
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            Map<LLVMValue, Integer> uses = new HashMap<>();
+            for (LLVMBlock block : function.blocks)
+                for (LLVMInstruction instr : block.instructions)
+                    for (LLVMValue operand : instr.operands)
+                        if (!operand.equals(instr.result))
+                            uses.merge(operand, 1, Integer::sum);
+
+            for (LLVMBlock block : function.blocks)
+                changed |= block.instructions.removeIf(instr -> inserted.contains(instr) && !uses.containsKey(instr.result));
+        }
+    }
+}
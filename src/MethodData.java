@@ -1,6 +1,4 @@
-import javafx.util.Pair;
 import java.util.Map;
-import java.util.ArrayList;
 import java.util.LinkedHashMap; 
 
 /* for each method, store some meta data */
@@ -8,9 +6,9 @@ public class MethodData{
     String className;       // whose class implementation it is
     String returnType;
     Integer offset;
-    ArrayList<Pair<String, String>> arguments;
+    SymbolTable arguments;  // records of form: (parameter_name, type, position), null if there are none
 
-    MethodData(String className, String returnType, Integer offset, ArrayList<Pair<String, String>> arguments){
+    MethodData(String className, String returnType, Integer offset, SymbolTable arguments){
         this.className = className;
         this.returnType = returnType;
         this.offset = offset;
@@ -1,67 +1,134 @@
-
-import javafx.util.Pair;
 import java.util.ArrayList;
 import java.util.*;
 
 public abstract class MyUtils{
 
-    protected static String getArgs(ArrayList<Pair<String, String>> args, boolean isDefinition){
-        String rv = " (i8*" + (isDefinition ? " %this" : ""), type;
-        int i = 0;
+    protected static String getArgs(SymbolTable args, boolean isDefinition){
+        StringBuilder rv = new StringBuilder(" (i8*").append(isDefinition ? " %this" : "");
         if(args != null){
-            for(Pair<String, String> arg : args){
-                type = ClassData.getSize(arg.getKey()).getValue();
-                rv += (i++ < args.size() ? ", " : "") + type + (isDefinition ? " %." + arg.getValue() : "");
+            for(int i = 0; i < args.size(); i++){
+                rv.append(", ").append(Types.llvmType(args.type(i)));
+                if(isDefinition)
+                    rv.append(" %.").append(args.name(i));
             }
         }
-        return rv + ")" + (isDefinition ? "" : "*");
+        return rv.append(")").append(isDefinition ? "" : "*").toString();
     }
 
-    protected static String declareMethods(String className, Map<String, MethodData> methods){
-        String rv = "", methodName, retType;
-        int i = 0;
+    /* vTable entry of a method, e.g. i8* bitcast (i32 (i8*, i32)* @A.foo to i8*) */
+    protected static String vTableEntry(String methodName, MethodData method){
+        return "i8* bitcast (" + Types.llvmType(method.returnType) + MyUtils.getArgs(method.arguments, false)
+                + " @" + method.className + "." + methodName + " to i8*)";
+    }
 
-        for(Map.Entry<String, MethodData> entry : methods.entrySet()){
-            retType = ClassData.getSize(entry.getValue().returnType).getValue();
-            methodName = entry.getKey();
-            rv += "i8* bitcast (" + retType + MyUtils.getArgs(entry.getValue().arguments, false) + " @" + entry.getValue().className + "." + methodName + " to i8*)";
-            rv += ++i < methods.size() ? ", " : "";
+    /* the vTable entries of every class, by method offset. Classes are built after their parents and start from a
+       copy of the parent's array: inherited entries are the same strings, only those of the methods a class
+       implements itself are made, so each entry text is built once however deep the hierarchy goes */
+    protected static Map<String, String[]> buildVTables(Map<String, ClassData> data){
+        Map<String, String[]> vTables = new HashMap<>();
+        for(String className : ClassData.topologicalOrder(data)){
+            ClassData cd = data.get(className);
+            String[] parent = cd.parentName == null ? null : vTables.get(cd.parentName);
+            String[] entries = parent == null ? new String[cd.methods.size()] : Arrays.copyOf(parent, cd.methods.size());
+            for(Map.Entry<String, MethodData> method : cd.methods.entrySet()){
+                if(entries[method.getValue().offset] == null || method.getValue().className.equals(className))
+                    entries[method.getValue().offset] = MyUtils.vTableEntry(method.getKey(), method.getValue());
+            }
+            vTables.put(className, entries);
         }
-        return rv;
+        return vTables;
+    }
+
+    protected static String declareMethods(String[] entries){
+        int length = 0;
+        for(String entry : entries)
+            length += (entry == null ? 8 : entry.length()) + 2;
+        StringBuilder rv = new StringBuilder(length);
+        for(int i = 0; i < entries.length; i++)
+            rv.append(i > 0 ? ", " : "").append(entries[i] == null ? "i8* null" : entries[i]);
+        return rv.toString();
     }
 
     protected static void declareVTable(LLVMGenerator obj){
-        String className;
-        Map<String, MethodData> methods;
+        Map<String, String[]> vTables = MyUtils.buildVTables(obj.data);
+
+        obj.module.addGlobal(";for each class, declare a global vTable containing a pointer for each method");
+        for(Map.Entry<String, ClassData> entry : obj.data.entrySet()){
+            String[] entries = vTables.get(entry.getKey());
+            obj.module.addGlobal("@." + entry.getKey() + "_vtable", MyUtils.declareVTable(entry.getKey(), entries));
+        }
+        obj.module.vTables = vTables;
+    }
 
-        obj.emit(";for each class, declare a global vTable containing a pointer for each method");
+    /* definition of the vTable of a class, a null entry is a slot nothing can call */
+    protected static String declareVTable(String className, String[] entries){
+        return "@." + className + "_vtable = global [" + entries.length + " x i8*] [" + MyUtils.declareMethods(entries) + "]";
+    }
+
+    /* declare the struct type of each laid out class, e.g. %class.A = type { i8*, i8*, i32, i1 } */
+    protected static void declareStructs(LLVMGenerator obj){
+        boolean first = true;
         for(Map.Entry<String, ClassData> entry : obj.data.entrySet()){
-            className = entry.getKey();
-            methods = entry.getValue().methods;
-            obj.emit("@." + className + "_vtable = global [" + methods.size() + " x i8*] [" + MyUtils.declareMethods(className, methods) + "]");
+            if(entry.getValue().structFields == null)
+                continue;
+            if(first)
+                obj.module.addGlobal(";for each class, declare the struct type of its objects: vTable pointer, then the fields");
+            first = false;
+            obj.module.addGlobal(ClassData.structType(entry.getKey()) + " = type { " + String.join(", ", entry.getValue().structFields) + " }");
+            obj.module.structOffsets.put(ClassData.structType(entry.getKey()), entry.getValue().structOffsets);
         }
     }
 
-    protected static ArrayList<Pair<String, String>> getParams(String[] params){
-        ArrayList<Pair<String, String>> rv = new ArrayList<>();
+    /* byte offsets of the fields of every class holding pointers (arrays and objects), inherited ones included, also
+       those a subclass hides by declaring a field of the same name. Like the vTables, classes are done after their
+       parents and start from the parent's offsets; a class adding no pointer field shares its parent's list */
+    protected static void buildPointerOffsets(Map<String, ClassData> data){
+        for(String className : ClassData.topologicalOrder(data)){
+            ClassData cd = data.get(className);
+            ClassData parent = cd.parentName == null ? null : data.get(cd.parentName);
+            List<Integer> inherited = parent == null || parent.pointerOffsets == null ? Collections.emptyList() : parent.pointerOffsets;
+            Set<Integer> offsets = new TreeSet<>(inherited);
+            for(int i = 0; i < cd.vars.size(); i++){
+                if(Types.isReference(cd.vars.type(i)))
+                    offsets.add(cd.vars.value(i));
+            }
+            cd.pointerOffsets = offsets.size() == inherited.size() ? inherited : new ArrayList<>(offsets);
+        }
+    }
+
+    /* reference to the gc map of a class, or of int arrays for "array", as an i8* operand */
+    protected static LLVMValue gcMap(LLVMGenerator obj, String className){
+        int words = 2 + (className.equals("array") ? 0 : obj.data.get(className).pointerOffsets.size());
+        return LLVMValue.constant("i8*", "bitcast ([" + words + " x i32]* @." + className + "_gcmap to i8*)");
+    }
+
+    /* declare the runtime heap and, for each class, the map the collector reads its objects with:
+       [size in bytes, number of pointer fields, offset of each]; int arrays have size -1, their length says */
+    protected static void declareGcMaps(LLVMGenerator obj){
+        obj.module.addGlobal(";heap of runtime/minijava_rt.c, @mj_new(bytes, gc map) allocates when the nursery block is full\n"
+                + "declare i8* @mj_new(i32, i8*)\n"
+                + "@mj_top = external thread_local global i8*\n"
+                + "@mj_limit = external thread_local global i8*");
+        obj.module.addGlobal("@.array_gcmap = constant [2 x i32] [i32 -1, i32 0]");
+
+        MyUtils.buildPointerOffsets(obj.data);
+        for(Map.Entry<String, ClassData> entry : obj.data.entrySet()){
+            List<Integer> offsets = entry.getValue().pointerOffsets;
+            StringBuilder map = new StringBuilder("[i32 " + entry.getValue().size + ", i32 " + offsets.size());
+            for(int offset : offsets)
+                map.append(", i32 ").append(offset);
+            obj.module.addGlobal("@." + entry.getKey() + "_gcmap", "@." + entry.getKey() + "_gcmap = constant [" + (offsets.size() + 2) + " x i32] " + map + "]");
+        }
+    }
+
+    protected static SymbolTable getParams(Types types, String[] params){
+        SymbolTable rv = new SymbolTable(params.length);
         int splitAt;
         for(String par : params){
             splitAt = par.indexOf(':');
             if(splitAt != -1)
-                rv.add(new Pair<>(par.substring(0, splitAt), par.substring(splitAt+1)));
+                rv.put(par.substring(splitAt+1), types.id(par.substring(0, splitAt)), rv.size());
         }
         return rv;
     }
-
-    public static String filterSignature(String signature, String classPointer){
-        String[] args = signature.split(",");
-        String rv = "";
-        int len = args.length;
-
-        if(len == 1)
-            return "(i8*)" ;
-        for(int i = 0; i < len; i++)
-            rv += args[i].trim().split(" ")[0] + (i + 1 ==  len ? ")" : ", ");
-        return rv;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/* runs the optimization passes over every generated function, each pass can be switched off with --no-<name> */
+public class Optimizer {
+    private final Set<String> disabled;
+    int inlineBudget;               // largest callee (in instructions) the Inliner copies into its callers
+
+    public Optimizer() {
+        this.disabled = new HashSet<>();
+        this.inlineBudget = Inliner.DEFAULT_BUDGET;
+    }
+
+    /**
+     * Recognise a --no-<pass> or --inline-budget=N command line option, return false if arg is something else.
+     */
+    public boolean parseOption(String arg) {
+        if (arg.startsWith("--inline-budget=")) {
+            this.inlineBudget = Integer.parseInt(arg.substring("--inline-budget=".length()));
+            return true;
+        }
+        if (!arg.startsWith("--no-"))
+            return false;
+        this.disabled.add(arg.substring("--no-".length()));
+        return true;
+    }
+
+    public boolean isEnabled(String pass) {
+        return !this.disabled.contains(pass);
+    }
+
+    /**
+     * Names of the disabled passes, sorted.
+     */
+    public Set<String> getDisabled() {
+        return new TreeSet<>(this.disabled);
+    }
+
+    /**
+     * Optimize every function of the module, concurrently if asked to (functions are optimized independently).
+     * Inlining looks at callers and callees together, so it runs alone in between, on optimized callees; the
+     * callers it changed then go through the passes again.
+     */
+    public void run(LLVMModule module, boolean parallel) {
+        forEach(module.functions, parallel, function -> this.run(module, function));
+        if (this.isEnabled("inline"))
+            forEach(Inliner.run(module, this.inlineBudget), parallel, function -> this.run(module, function));
+        forEach(module.functions, parallel, this::finish);
+    }
+
+    private static void forEach(List<LLVMFunction> functions, boolean parallel, Consumer<LLVMFunction> pass) {
+        if (parallel)
+            functions.parallelStream().forEach(pass);
+        else
+            functions.forEach(pass);
+    }
+
+    /**
+     * Optimize one function of module, the module tells the passes how classes are laid out.
+     */
+    public void run(LLVMModule module, LLVMFunction function) {
+        if (function.isCached())
+            return;
+        if (this.isEnabled("mem2reg"))
+            Mem2Reg.run(function);
+        if (this.isEnabled("constfold"))
+            ConstantFolding.run(function);
+        if (this.isEnabled("escape") && this.isEnabled("mem2reg") && EscapeAnalysis.run(function, module.structOffsets)) {
+            /* fields of scalar replaced objects are now slots like those of locals */
+            Mem2Reg.run(function);
+            if (this.isEnabled("constfold"))
+                ConstantFolding.run(function);
+        }
+        if (this.isEnabled("cse"))
+            ValueNumbering.run(function);
+        if (this.isEnabled("loops") && this.isEnabled("mem2reg"))
+            LoopOptimization.run(function);
+        if (this.isEnabled("bce"))
+            BoundsCheckElimination.run(function);
+        if (this.isEnabled("dce"))
+            DeadCodeElimination.run(function);
+    }
+
+    /* passes that run once on each function, after all the others (inlining included) are done */
+    private void finish(LLVMFunction function) {
+        if (function.isCached())
+            return;
+        if (this.isEnabled("fastalloc"))
+            HeapAllocation.run(function);
+    }
+}
@@ -0,0 +1,58 @@
+/* settings of a compilation, taken from the command line or from a --server request */
+public class Options {
+    boolean displayOffsets;
+    boolean parallelMethods;    // generate and optimize the methods of a file concurrently
+    boolean incremental;        // reuse the methods of unchanged classes from the previous compilation
+    boolean toStdout;           // write the ir to stdout (e.g. to pipe it into llc) instead of next to the source
+    boolean gcHeap;             // allocate from the garbage collected heap of runtime/minijava_rt.c
+    boolean bufferedPrint;      // print through the buffer of runtime/minijava_print.c
+    String stats;               // report time, memory and code size of each compilation: "text", "json" or null
+    Optimizer optimizer;
+
+    public Options() {
+        this.optimizer = new Optimizer();
+    }
+
+    /**
+     * Recognise an option, return false if arg is something else (e.g. a file name).
+     */
+    public boolean parse(String arg) {
+        switch (arg) {
+            case "--offsets":
+                this.displayOffsets = true;
+                return true;
+            case "--parallel-methods":
+                this.parallelMethods = true;
+                return true;
+            case "--incremental":
+                this.incremental = true;
+                return true;
+            case "--stdout":
+                this.toStdout = true;
+                return true;
+            case "--gc":
+                this.gcHeap = true;
+                return true;
+            case "--buffered-print":
+                this.bufferedPrint = true;
+                return true;
+            case "--stats":
+            case "--time-report":
+            case "--stats=text":
+                this.stats = "text";
+                return true;
+            case "--stats=json":
+                this.stats = "json";
+                return true;
+            default:
+                return this.optimizer.parseOption(arg);
+        }
+    }
+
+    /**
+     * Settings that change the generated code, cached code is only reused under the same ones.
+     */
+    public String signature() {
+        return "disabled=" + this.optimizer.getDisabled() + " inline-budget=" + this.optimizer.inlineBudget + " gc=" + this.gcHeap;
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/* rapid type analysis from main. A method is live when a live method calls it directly, or sends its message to
+   a receiver of a class some live method instantiates and that class (or one of its parents) implements it.
+   Instantiating a class shows in the code as a reference to its vTable (or gc map), a direct call as a reference
+   to the function; the class of the receiver of a send dispatched through a vTable is no longer in the ir, so
+   functions keep those sends on the side (LLVMFunction.sends). Once nothing new turns up
+        - methods that are not live leave the module
+        - classes never instantiated lose their vTable and gc map
+        - vTable slots no live send can select become null, so they stop referring to dead methods, and vTables
+          left with the same contents become aliases of the first of them
+   Runs on optimized code, after inlining took away the calls it could */
+public class Reachability {
+    private static final Pattern classReference = Pattern.compile("@\\.([A-Za-z_$][\\w$]*)_(?:vtable|gcmap)\\b");
+    private static final Pattern functionReference = Pattern.compile("@([A-Za-z_$][\\w$]*\\.[\\w$]+)");
+
+    private final Map<String, ClassData> classes;
+    private final Map<String, LLVMFunction> functions;
+    private final Set<String> live;                 // functions
+    private final Set<String> instantiated;         // classes
+    private final Set<String> sends;                // records of form: <class>.<method>
+    private final Map<String, BitSet> slots;        // records of form: (class_name, vTable slots live sends select)
+    private final Deque<LLVMFunction> work;
+
+    private Reachability(LLVMModule module, Map<String, ClassData> classes) {
+        this.classes = classes;
+        this.functions = new HashMap<>();
+        for (LLVMFunction function : module.functions)
+            this.functions.put(function.getName(), function);
+        this.live = new HashSet<>();
+        this.instantiated = new HashSet<>();
+        this.sends = new LinkedHashSet<>();
+        this.slots = new HashMap<>();
+        this.work = new ArrayDeque<>();
+    }
+
+    /**
+     * Drop the methods, classes and vTable slots of module that cannot be reached from main.
+     */
+    public static void run(LLVMModule module, Map<String, ClassData> classes) {
+        Reachability reachability = new Reachability(module, classes);
+        reachability.call("main");
+        while (!reachability.work.isEmpty())
+            reachability.scan(reachability.work.pop());
+        reachability.prune(module);
+    }
+
+    private void call(String function) {
+        if (this.functions.containsKey(function) && this.live.add(function))
+            this.work.push(this.functions.get(function));
+    }
+
+    private void scan(LLVMFunction function) {
+        if (function.isCached()) {
+            this.references(function.getText());
+        } else {
+            for (LLVMBlock block : function.blocks)
+                for (LLVMInstruction instr : block.instructions)
+                    for (LLVMValue operand : instr.operands)
+                        if (!operand.isRegister() && operand.getName().indexOf('@') >= 0)
+                            this.references(operand.getName());
+        }
+        for (String send : function.sends)
+            this.send(send);
+    }
+
+    /* classes and functions referred to in a piece of ir */
+    private void references(String text) {
+        Matcher m = classReference.matcher(text);
+        while (m.find())
+            this.instantiate(m.group(1));
+        m = functionReference.matcher(text);
+        while (m.find())
+            this.call(m.group(1));
+    }
+
+    private void instantiate(String className) {
+        if (this.classes.containsKey(className) && this.instantiated.add(className))
+            for (String send : this.sends)
+                this.dispatch(className, send);
+    }
+
+    private void send(String send) {
+        if (this.sends.add(send))
+            for (String className : this.instantiated)
+                this.dispatch(className, send);
+    }
+
+    /* a receiver of the class may get the message if it is the class of the send or a subclass of it */
+    private void dispatch(String className, String send) {
+        String receiver = send.substring(0, send.indexOf('.')), method = send.substring(send.indexOf('.') + 1);
+        for (String c = className; !c.equals(receiver); c = this.classes.get(c).parentName)
+            if (this.classes.get(c).parentName == null)
+                return;
+
+        MethodData md = this.classes.get(className).methods.get(method);
+        if (md == null)
+            return;
+        this.slots.computeIfAbsent(className, k -> new BitSet()).set(md.offset);
+        this.call(md.className + "." + method);
+    }
+
+    private void prune(LLVMModule module) {
+        module.functions.removeIf(function -> !this.live.contains(function.getName()));
+        if (module.vTables == null)
+            return;
+
+        Map<String, String> rows = new HashMap<>();     // records of form: (vTable contents, first class having them)
+        for (String className : this.classes.keySet()) {
+            String symbol = "@." + className + "_vtable";
+            if (!this.instantiated.contains(className)) {
+                module.removeGlobal(symbol);
+                module.removeGlobal("@." + className + "_gcmap");
+                continue;
+            }
+
+            String[] entries = module.vTables.get(className).clone();
+            BitSet used = this.slots.getOrDefault(className, new BitSet());
+            for (int i = 0; i < entries.length; i++)
+                if (!used.get(i))
+                    entries[i] = null;
+
+            String type = "[" + entries.length + " x i8*]", first = rows.putIfAbsent(type + MyUtils.declareMethods(entries), className);
+            module.replaceGlobal(symbol, first == null ? MyUtils.declareVTable(className, entries)
+                    : symbol + " = alias " + type + ", " + type + "* @." + first + "_vtable");
+        }
+    }
+}
@@ -1,28 +1,15 @@
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class State {
-    private Map<String, IdInfo> ids;
+    private SymbolTable ids;            // records of form: (identifier, type, index of its register in registers)
+    private List<String> registers;     // registers holding the address of each identifier
     private int regCounter;
     private Statement[] statements;
-
-    class IdInfo {
-        private String register;
-        private String type;
-
-        IdInfo(String register, String type) {
-            this.register = register;
-            this.type = type;
-        }
-
-        public String getRegister() {
-            return register;
-        }
-
-        public String getType() {
-            return type;
-        }
-    }
+    CompileStats stats;                 // when set, registers and labels handed out are counted in it
 
     /**
      * Nested class Statement for managing labels.
@@ -59,47 +46,72 @@ public class State {
             put("while", 1);
             put("oob", 2);
             put("and", 3);
+            put("inline", 4);
+            put("new", 5);
         }
     };
 
     // Constructor: initialize identifier map and counters
     public State() {
-        this.ids = new LinkedHashMap<>();
+        this.ids = new SymbolTable();
+        this.registers = new ArrayList<>();
         this.regCounter = 0;
         this.statements = new Statement[State.labelTypes.size()];
         this.statements[0] = new Statement(new String[]{"if", "else", "fi"});
         this.statements[1] = new Statement(new String[]{"while", "do", "done"});
         this.statements[2] = new Statement(new String[]{"outOfBounds", "withinBounds"});
         this.statements[3] = new Statement(new String[]{"true", "false", "end"});
+        this.statements[4] = new Statement(new String[]{"inline", "return"});
+        this.statements[5] = new Statement(new String[]{"alloc", "collect", "allocated"});
     }
 
     /**
      * Return next register available.
      */
     public String newReg() {
+        if (this.stats != null)
+            this.stats.registers.increment();
         return "%_" + this.regCounter++;
     }
 
     /**
-     * Associate an identifier with the register holding the address of the identifier.
+     * Associate an identifier of a type (see Types) with the register holding the address of the identifier.
      */
-    public String newReg(String id, String llvmType) {
-        this.ids.put(id, new IdInfo("%_" + this.regCounter, llvmType));
+    public String newReg(String id, int type) {
+        this.put(id, "%_" + this.regCounter, type);
         return this.newReg();
     }
 
     /**
      * Insert information about a new identifier used by this method.
      */
-    public void put(String id, String register, String llvmType) {
-        this.ids.put(id, new IdInfo(register, llvmType));
+    public void put(String id, String register, int type) {
+        int index = this.ids.put(id, type, this.registers.size());
+        if (index < this.registers.size())
+            this.registers.set(index, register);
+        else
+            this.registers.add(register);
+    }
+
+    /**
+     * Index of the information about an identifier, -1 if it is not a local or parameter of this method.
+     */
+    public int lookup(String id) {
+        return this.ids.indexOf(id);
+    }
+
+    /**
+     * Register holding the address of the identifier at index.
+     */
+    public String getRegister(int index) {
+        return this.registers.get(index);
     }
 
     /**
-     * Get a new mutable version of all information about an identifier.
+     * Type of the identifier at index.
      */
-    public IdInfo getIdInfo(String id) {
-        return this.ids.get(id);
+    public int getType(int index) {
+        return this.ids.type(index);
     }
 
     /**
@@ -117,14 +129,24 @@ public class State {
         if (index == null) {
             return null;
         }
+        if (this.stats != null)
+            this.stats.labels.get(label).increment();
         return this.statements[index].getLabels();
     }
 
+    /**
+     * Kinds of labels newLabel accepts.
+     */
+    public static Set<String> labelKinds() {
+        return State.labelTypes.keySet();
+    }
+
     /**
      * Reset state.
      */
     public void clear() {
         this.ids.clear();
+        this.registers.clear();
         this.regCounter = 0;
         for (Statement statement : this.statements) {
             statement.resetCounter();
@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/* names bound to a type (see Types) and an int: the offset of a field, the position of a parameter or the register
+   of a local. Entries live in flat arrays in the order they were added, so walking a table is walking arrays, and a
+   name is found by open addressing over the entry indices; neither lookups nor entries box anything. Adding a name
+   already present rebinds it in place, keeping its position (as a LinkedHashMap would) */
+public class SymbolTable {
+    private String[] names;
+    private int[] types;
+    private int[] values;
+    private int size;
+    private int[] slots;            // entry index + 1 for each hash slot, 0 when free; a power of two, at most half full
+
+    public SymbolTable() {
+        this(4);
+    }
+
+    public SymbolTable(int capacity) {
+        this.names = new String[capacity];
+        this.types = new int[capacity];
+        this.values = new int[capacity];
+        this.slots = new int[Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) * 2];
+    }
+
+    // Constructor: copy of other, entries in the same order
+    public SymbolTable(SymbolTable other) {
+        this.names = Arrays.copyOf(other.names, other.names.length);
+        this.types = Arrays.copyOf(other.types, other.types.length);
+        this.values = Arrays.copyOf(other.values, other.values.length);
+        this.size = other.size;
+        this.slots = Arrays.copyOf(other.slots, other.slots.length);
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Index of the entry of name, -1 if there is none.
+     */
+    public int indexOf(String name) {
+        int mask = this.slots.length - 1;
+        for (int h = hash(name) & mask; ; h = (h + 1) & mask) {
+            int slot = this.slots[h];
+            if (slot == 0)
+                return -1;
+            if (this.names[slot - 1].equals(name))
+                return slot - 1;
+        }
+    }
+
+    public boolean contains(String name) {
+        return this.indexOf(name) >= 0;
+    }
+
+    /**
+     * Bind name to type and value, return the index of its entry.
+     */
+    public int put(String name, int type, int value) {
+        int index = this.indexOf(name);
+        if (index < 0) {
+            if (this.size == this.names.length) {
+                int capacity = Math.max(4, 2 * this.size);
+                this.names = Arrays.copyOf(this.names, capacity);
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.values = Arrays.copyOf(this.values, capacity);
+            }
+            if (2 * (this.size + 1) > this.slots.length)
+                this.rehash(2 * this.slots.length);
+            index = this.size++;
+            this.names[index] = name;
+            this.insert(name, index);
+        }
+        this.types[index] = type;
+        this.values[index] = value;
+        return index;
+    }
+
+    /**
+     * Add every entry of other, in its order.
+     */
+    public void putAll(SymbolTable other) {
+        for (int i = 0; i < other.size; i++)
+            this.put(other.names[i], other.types[i], other.values[i]);
+    }
+
+    private void insert(String name, int index) {
+        int mask = this.slots.length - 1, h = hash(name) & mask;
+        while (this.slots[h] != 0)
+            h = (h + 1) & mask;
+        this.slots[h] = index + 1;
+    }
+
+    private void rehash(int capacity) {
+        this.slots = new int[capacity];
+        for (int i = 0; i < this.size; i++)
+            this.insert(this.names[i], i);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public String name(int index) {
+        return this.names[index];
+    }
+
+    public int type(int index) {
+        return this.types[index];
+    }
+
+    public int value(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * Remove every entry, keeping the arrays for the next ones.
+     */
+    public void clear() {
+        Arrays.fill(this.names, 0, this.size, null);
+        Arrays.fill(this.slots, 0);
+        this.size = 0;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* mini java types as small ints, so symbol tables keep them in flat int arrays (see SymbolTable): the primitive
+   types have fixed ids, class names are interned the first time they are seen. Each compilation has a table of its
+   own (FirstVisitor makes it), so a long running --server does not collect the class names of every file it ever
+   compiled; methods generated in parallel share the table of their file. Size and llvm type of a type id are
+   array lookups and do not need the table, every class id stands for a pointer */
+public final class Types {
+    static final int BOOLEAN = 0, INTEGER = 1, ARRAY = 2;
+
+    private static final int[] sizes = {1, 4, ClassData.pointerSize};
+    private static final String[] llvmTypes = {"i1", "i32", "i8*"};
+    private static final String[] pointerTypes = {"i1*", "i32*", "i8**"};
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];   // records of form: (type id, type name)
+    private int count;
+
+    public Types() {
+        for (String primitive : new String[]{"boolean", "integer", "array"})
+            this.intern(primitive);
+    }
+
+    /**
+     * Id of a mini java type: "boolean", "integer", "array" or a class name.
+     */
+    public int id(String type) {
+        Integer id = this.ids.get(type);
+        return id != null ? id : this.intern(type);
+    }
+
+    private synchronized int intern(String type) {
+        Integer id = this.ids.get(type);
+        if (id != null)
+            return id;
+        if (this.count == this.names.length)
+            this.names = Arrays.copyOf(this.names, 2 * this.count);
+        this.names[this.count] = type;
+        this.ids.put(type, this.count);     // publishes the name, readers find the id only after this
+        return this.count++;
+    }
+
+    public String name(int type) {
+        return this.names[type];
+    }
+
+    /**
+     * Bytes a field of the type takes, objects and arrays are pointers.
+     */
+    public static int size(int type) {
+        return type < Types.sizes.length ? Types.sizes[type] : ClassData.pointerSize;
+    }
+
+    public static String llvmType(int type) {
+        return type < Types.llvmTypes.length ? Types.llvmTypes[type] : "i8*";
+    }
+
+    public static String llvmType(String type) {
+        switch (type) {
+            case "boolean":
+                return Types.llvmTypes[BOOLEAN];
+            case "integer":
+                return Types.llvmTypes[INTEGER];
+            default:
+                return "i8*";
+        }
+    }
+
+    /**
+     * Type of the address of a variable of the type, e.g. i32* for integer.
+     */
+    public static String pointerTo(int type) {
+        return type < Types.pointerTypes.length ? Types.pointerTypes[type] : "i8**";
+    }
+
+    /**
+     * Whether values of the type point to the heap (arrays and objects), as the garbage collector needs to know.
+     */
+    public static boolean isReference(int type) {
+        return type >= ARRAY;
+    }
+}
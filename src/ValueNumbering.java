@@ -0,0 +1,149 @@
+import java.util.*;
+
+/* common subexpression elimination by value numbering: an instruction computing what an earlier one already did is
+   dropped and its uses take the earlier result. Two kinds of values are reused
+        - pure ones (getelementptr, bitcast, arithmetic, comparisons, and loads of the length slot of an array, which
+          never changes after allocation) anywhere the earlier one dominates, by walking the dominator tree with a
+          table scoped to the path from the entry
+        - loads of fields, array elements and (without mem2reg) locals, within a block and the blocks it alone leads
+          to; a bounds check failing calls @throw_oob, which does not return, so the withinBounds block of a check
+          counts as led to by the check alone. A store kills the loads of its type and makes its value the one to
+          load from its address, a call kills all loads unless it is to the runtime (printing, allocating)
+   so the bitcast, getelementptr and load LLVMGenerator.getField emits on each read of a field, and the length read
+   for each bounds check, are done once per block. Works on ssa registers, loads included, so mem2reg is not needed */
+public class ValueNumbering {
+    static final Set<String> runtime = new HashSet<>(Arrays.asList(
+            "@print_int", "@print_bool", "@calloc", "@mj_new", "@throw_oob"));
+
+    private final LLVMFunction function;
+    private final DominatorTree dom;
+    private final Map<String, LLVMValue> pure;              // records of form: (expression, first result computing it)
+    private final Map<LLVMValue, LLVMValue> replacement;
+    private final Set<LLVMValue> lengthSlots;               // "getelementptr i32, i32* %array, i32 0", where arrays keep their length
+
+    private ValueNumbering(LLVMFunction function) {
+        this.function = function;
+        this.dom = new DominatorTree(function);
+        this.pure = new HashMap<>();
+        this.replacement = new HashMap<>();
+        this.lengthSlots = new HashSet<>();
+    }
+
+    public static void run(LLVMFunction function) {
+        new ValueNumbering(function).number();
+    }
+
+    /* the dominator tree is walked with an explicit stack, a frame's expressions leave the table when it is popped */
+    private void number() {
+        Deque<Object[]> stack = new ArrayDeque<>();     // records of form: (block, loads on entry, expressions it added)
+        stack.push(new Object[]{this.dom.order.get(0), new HashMap<String, Map<LLVMValue, LLVMValue>>(), null});
+
+        while (!stack.isEmpty()) {
+            Object[] frame = stack.peek();
+            if (frame[2] != null) {
+                stack.pop();
+                for (Object key : (List<?>) frame[2])
+                    this.pure.remove(key);
+                continue;
+            }
+
+            LLVMBlock block = (LLVMBlock) frame[0];
+            @SuppressWarnings("unchecked")
+            Map<String, Map<LLVMValue, LLVMValue>> loads = (Map<String, Map<LLVMValue, LLVMValue>>) frame[1];
+            List<String> added = new ArrayList<>();
+            frame[2] = added;
+            this.number(block, loads, added);
+
+            for (LLVMBlock child : this.dom.children.get(block))
+                stack.push(new Object[]{child, this.ledToBy(child, block) ? copy(loads) : new HashMap<>(), null});
+        }
+
+        if (this.replacement.isEmpty())
+            return;
+        for (LLVMBlock block : this.function.blocks)
+            for (LLVMInstruction instr : block.instructions)
+                for (int i = 0; i < instr.operands.size(); i++)
+                    instr.operands.set(i, this.resolve(instr.operands.get(i)));
+    }
+
+    private void number(LLVMBlock block, Map<String, Map<LLVMValue, LLVMValue>> loads, List<String> added) {
+        Iterator<LLVMInstruction> it = block.instructions.iterator();
+        while (it.hasNext()) {
+            LLVMInstruction instr = it.next();
+            for (int i = 0; i < instr.operands.size(); i++)
+                instr.operands.set(i, this.resolve(instr.operands.get(i)));
+
+            LLVMValue earlier = null;
+            String key = this.expression(instr);
+            if (key != null) {
+                earlier = this.pure.putIfAbsent(key, instr.result);
+                if (earlier == null)
+                    added.add(key);
+            } else if (instr.opcode == LLVMInstruction.Opcode.LOAD) {
+                earlier = loads.computeIfAbsent(instr.result.getType(), k -> new HashMap<>())
+                        .putIfAbsent(instr.operands.get(0), instr.result);
+            } else if (instr.opcode == LLVMInstruction.Opcode.STORE) {
+                /* different types never share memory: fields are laid out apart, arrays hold i32 only */
+                Map<LLVMValue, LLVMValue> killed = loads.computeIfAbsent(instr.operands.get(0).getType(), k -> new HashMap<>());
+                killed.clear();
+                killed.put(instr.operands.get(1), instr.operands.get(0));
+            } else if (instr.opcode == LLVMInstruction.Opcode.CALL && !runtime.contains(instr.operands.get(0).getName())) {
+                loads.clear();
+            }
+
+            if (earlier != null) {
+                this.replacement.put(instr.result, earlier);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Key of what a pure instruction computes (operands already numbered), null if instr is not pure.
+     */
+    private String expression(LLVMInstruction instr) {
+        List<LLVMValue> operands = instr.operands;
+        switch (instr.opcode) {
+            case ADD:
+            case MUL:
+            case XOR:
+                /* commutative, the operands go in a fixed order */
+                if (operands.get(0).toString().compareTo(operands.get(1).toString()) > 0)
+                    return instr.opcode + " " + operands.get(1) + ", " + operands.get(0);
+            case SUB:
+            case ICMP_SLT:
+            case ICMP_ULE:
+                return instr.opcode + " " + operands.get(0) + ", " + operands.get(1);
+            case GETELEMENTPTR:
+                if ("i32".equals(instr.type) && operands.size() == 2 && operands.get(1).isConstant() && operands.get(1).intValue() == 0)
+                    this.lengthSlots.add(instr.result);
+                return instr.opcode + " " + instr.type + " " + operands;
+            case BITCAST:
+                return instr.opcode + " " + operands.get(0) + " " + instr.result.getType();
+            case LOAD:
+                return this.lengthSlots.contains(operands.get(0)) ? "length " + operands.get(0) : null;
+            default:
+                return null;
+        }
+    }
+
+    /* control reaches child only from parent, or from blocks that never return */
+    private boolean ledToBy(LLVMBlock child, LLVMBlock parent) {
+        for (LLVMBlock pred : this.dom.predecessors.get(child))
+            if (pred != parent && !BoundsCheckElimination.throwsOutOfBounds(pred))
+                return false;
+        return true;
+    }
+
+    private static Map<String, Map<LLVMValue, LLVMValue>> copy(Map<String, Map<LLVMValue, LLVMValue>> loads) {
+        Map<String, Map<LLVMValue, LLVMValue>> copy = new HashMap<>();
+        for (Map.Entry<String, Map<LLVMValue, LLVMValue>> entry : loads.entrySet())
+            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        return copy;
+    }
+
+    private LLVMValue resolve(LLVMValue value) {
+        LLVMValue earlier = this.replacement.get(value);
+        return earlier == null ? value : earlier;
+    }
+}
@@ -1,19 +1,20 @@
 @echo off
 setlocal
 
-set JAVA_FX="C:\Program Files\Java\javafx-sdk-17.0.11"
-set JAVA_FX_LIBS=%JAVA_FX%\lib
 set SRC_DIR=..\tests\in\
 set ANTLR_LIB="C:\Program Files\Java\libs\antlr-4.9.3-complete.jar"
+set JMH_LIBS=C:\Program Files\Java\libs\jmh
 
 if "%1" == "compile" goto compile
 if "%1" == "run" goto run
 if "%1" == "clean" goto clean
 if "%1" == "draw" goto draw
+if "%1" == "server" goto server
+if "%1" == "bench" goto bench
 
 
 :default
-echo Invalid target. Use compile, run or clean.
+echo Invalid target. Use compile, run, server, bench or clean.
 
 goto end
 
@@ -24,7 +25,7 @@ java -cp %ANTLR_LIB% org.antlr.v4.Tool JavaParser.g4 -visitor
 rmdir /s /q ..\build
 mkdir ..\build
 
-javac --module-path %JAVA_FX_LIBS% --add-modules javafx.controls,javafx.fxml Main.java -d ..\build
+javac Main.java -d ..\build
 
 if errorlevel 1 (
     echo Compilation failed.
@@ -36,7 +37,23 @@ echo Compilation successful.
 goto end
 
 :run
-java --module-path %JAVA_FX_LIBS% --add-modules javafx.controls,javafx.fxml -cp %ANTLR_LIB%;..\build Main %SRC_DIR%\%2
+java -cp %ANTLR_LIB%;..\build Main %SRC_DIR%\%2
+goto end
+
+:server
+java -cp %ANTLR_LIB%;..\build Main --server %2
+goto end
+
+:bench
+rem JMH_LIBS holds jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3 jars; extra JMH options go in %2
+rmdir /s /q ..\build\bench
+mkdir ..\build\bench
+javac -cp %ANTLR_LIB%;"%JMH_LIBS%\*" -sourcepath . -d ..\build\bench ..\benchmarks\BenchmarkPhases.java ..\benchmarks\bench\*.java
+if errorlevel 1 (
+    echo Compilation failed.
+    goto end
+)
+java -cp %ANTLR_LIB%;"%JMH_LIBS%\*";..\build\bench org.openjdk.jmh.Main -prof gc -rf json -rff ..\build\bench\results.json %2
 goto end
 
 :clean